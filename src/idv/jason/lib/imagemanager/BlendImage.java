@@ -24,7 +24,7 @@ public class BlendImage extends ImageDecorator{
 		}
 
 		Bitmap base = baseBitmap.getBitmap();
-		mFinalBitmap = Bitmap.createBitmap(base.getWidth(), base.getHeight(),
+		mFinalBitmap = ImageUtil.createBitmap(base.getWidth(), base.getHeight(),
 				base.getConfig());
 		Canvas canvas = new Canvas(mFinalBitmap);
 		canvas.drawBitmap(base, new Matrix(), null);
@@ -12,6 +12,22 @@ import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 
 public class ImageAttribute {
+	/**
+	 * How a processed image is encoded into the disk cache.
+	 */
+	public enum CacheFormat {
+		/** PNG for high quality, else JPEG, as older versions always did */
+		DEFAULT,
+		/** PNG only if the bitmap has alpha, else JPEG */
+		AUTO,
+		JPEG,
+		PNG,
+		/** WebP where the platform has it (API 14), else as {@link #AUTO} */
+		WEBP
+	}
+
+	public static final int DEFAULT_CACHE_QUALITY = 90;
+
 	private int maxWidth = 0;
 	private int maxHeight = 0;
 	
@@ -43,6 +59,12 @@ public class ImageAttribute {
 	private int mThreadSize = 3;
 	//
 	
+	// memory cache partition, falls back to the queue/stack id
+	private String mCacheName = null;
+	
+	private CacheFormat mCacheFormat = CacheFormat.DEFAULT;
+	private int mCacheQuality = DEFAULT_CACHE_QUALITY;
+	
 	public ImageAttribute() {
 		
 	}
@@ -163,6 +185,24 @@ public class ImageAttribute {
         defaultAttribute = false;
     }
 
+	/**
+	 * @param quality
+	 *            0-100, ignored by PNG
+	 */
+	public void setCacheFormat(CacheFormat format, int quality) {
+		mCacheFormat = format != null ? format : CacheFormat.DEFAULT;
+		mCacheQuality = quality;
+		defaultAttribute = false;
+	}
+
+	public CacheFormat getCacheFormat() {
+		return mCacheFormat;
+	}
+
+	public int getCacheQuality() {
+		return mCacheQuality;
+	}
+
 	public ImageAttribute(ImageAttribute attr, ImageView view) {
 		this.maxHeight = attr.maxHeight;
 		this.maxWidth = attr.maxWidth;
@@ -175,6 +215,9 @@ public class ImageAttribute {
         this.degree = attr.degree;
 
 		this.filterPhoto = attr.filterPhoto;
+		this.mCacheName = attr.mCacheName;
+		this.mCacheFormat = attr.mCacheFormat;
+		this.mCacheQuality = attr.mCacheQuality;
 		if(view != null) {
 			viewAttr = new ViewAttribute();
 			viewAttr.view = new WeakReference<ImageView>(view);
@@ -197,9 +240,45 @@ public class ImageAttribute {
 		builder.append(reflection);
         builder.append(degree);
 
+		// only when set, keeps the keys of entries cached before it existed
+		if (mCacheFormat != CacheFormat.DEFAULT || mCacheQuality != DEFAULT_CACHE_QUALITY) {
+			builder.append(mCacheFormat);
+			builder.append(mCacheQuality);
+		}
+
 		return builder.toString();
 	}
-	
+
+	/**
+	 * @return the same as {@link #getStringAttr()} without the max size, so
+	 *         every size of one image shares it
+	 */
+	public String getVariantAttr() {
+		StringBuilder builder = new StringBuilder();
+
+		builder.append(resizeWidth);
+		builder.append(resizeHeight);
+		builder.append(roundPixels);
+		builder.append(blendResId);
+		builder.append(highQuality);
+		builder.append(blurRadious);
+
+		builder.append(filterPhoto);
+		builder.append(reflection);
+        builder.append(degree);
+
+		return builder.toString();
+	}
+
+	/**
+	 * @return true if the image is only decoded down to the max size, so a
+	 *         larger decode of it can simply be scaled down
+	 */
+	public boolean isScalable() {
+		return resizeWidth == 0 && resizeHeight == 0 && roundPixels == 0 && blendResId == 0
+				&& blurRadious == 0 && filterPhoto == 0 && reflection == false && degree == 0;
+	}
+
 	public boolean containsAttribute() {
 		return !defaultAttribute;
 	}
@@ -314,6 +393,25 @@ public class ImageAttribute {
 		return mThreadSize;
 	}
 	
+	/**
+	 * Keep these images in the memory cache partition registered under
+	 * {@code name} by {@link ImageManager#setCachePartition}.
+	 */
+	public void setCacheName(String name) {
+		mCacheName = name;
+	}
+	
+	/**
+	 * @return the explicit cache name, else the queue id, else the stack id
+	 */
+	public String getCacheName() {
+		if(mCacheName != null)
+			return mCacheName;
+		if(mQueueId != null)
+			return mQueueId;
+		return mStackId;
+	}
+	
 	public void setMaxSizeEqualsScreenSize(Context context) {
 		DisplayMetrics display = context.getResources().getDisplayMetrics();
 		setMaxSize(display.widthPixels, display.heightPixels);
@@ -6,17 +6,32 @@
 
 package idv.jason.lib.imagemanager;
 
+import idv.jason.lib.imagemanager.cache.AdmissionPolicy;
+import idv.jason.lib.imagemanager.cache.BitmapPool;
+import idv.jason.lib.imagemanager.cache.CacheReconciler;
+import idv.jason.lib.imagemanager.cache.CacheStats;
+import idv.jason.lib.imagemanager.cache.DiskCache;
+import idv.jason.lib.imagemanager.cache.LongLruCache;
+import idv.jason.lib.imagemanager.cache.MemoryCache;
+import idv.jason.lib.imagemanager.cache.OffHeapCache;
+import idv.jason.lib.imagemanager.cache.PackedDiskCache;
+import idv.jason.lib.imagemanager.cache.PartitionedCache;
+import idv.jason.lib.imagemanager.cache.ReferenceCache;
+import idv.jason.lib.imagemanager.cache.StatsCounter;
+import idv.jason.lib.imagemanager.cache.VariantIndex;
 import idv.jason.lib.imagemanager.model.UrlInfo;
 import idv.jason.lib.imagemanager.tasks.ImageManagerThreadFactory;
+import idv.jason.lib.imagemanager.db.CacheIndex;
 import idv.jason.lib.imagemanager.db.DatabaseHelper;
-import idv.jason.lib.imagemanager.db.ImageTable;
+import idv.jason.lib.imagemanager.db.ImageInfo;
+import idv.jason.lib.imagemanager.db.JournalCacheIndex;
+import idv.jason.lib.imagemanager.db.SQLiteCacheIndex;
 import idv.jason.lib.imagemanager.util.LifoAsyncTask;
 import idv.jason.lib.imagemanager.util.LinkedBlockingStack;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,17 +39,20 @@ import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.content.ContentValues;
+import android.app.ActivityManager;
 import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -43,7 +61,6 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.ImageView;
@@ -61,6 +78,20 @@ public class ImageManager implements ImageFileBasicOperation{
 	private Context mContext;
 
 	private File mDownloadPath = null;
+
+	// default budget of the files in mDownloadPath
+	public static final long DEFAULT_DISK_CACHE_SIZE = 50L * 1024 * 1024;
+	// under the download path, not a valid id so the disk cache ignores it
+	private static final String PACKED_CACHE_DIR = "pack";
+	private long mDiskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+	// replaced by setDownloadPath() while other threads use it
+	private volatile DiskCache mDiskCache;
+	// small entries packed into segment files, null unless enabled
+	private volatile PackedDiskCache mPackedCache;
+	private long mPackedCacheSize;
+	private int mPackedMaxEntrySize;
+	// keep downloads that need no transform as they came
+	private volatile boolean mStoreOriginals = true;
 	
 	private ImageFactory mFactory;
 	
@@ -69,8 +100,18 @@ public class ImageManager implements ImageFileBasicOperation{
 	
 	private HashMap<String, ExecutorService> mThreadMap;
 	
+	// background work on the caches: measuring, trimming, stats dumps
+	private final ScheduledExecutorService mCacheExecutor = Executors
+			.newSingleThreadScheduledExecutor(new ImageManagerThreadFactory("image_cache"));
+	private final StatsCounter mStats = new StatsCounter();
+	private ScheduledFuture<?> mStatsDump;
+	// brings index and files back in line, recreated when either changes
+	private CacheReconciler mReconciler;
+	private ScheduledFuture<?> mReconcile;
+
 	private DatabaseHelper mDbHelper;
 	private SQLiteDatabase mWritableDb;
+	private volatile CacheIndex mIndex;
     private static final int MAX_RETRY = 3;
 
 	private ImageManager(Context c) {
@@ -78,6 +119,7 @@ public class ImageManager implements ImageFileBasicOperation{
 		
 		mDbHelper = new DatabaseHelper(c);
 		mWritableDb = mDbHelper.getWritableDatabase();
+		mIndex = new SQLiteCacheIndex(mWritableDb, mCacheExecutor);
 		
 		mThreadMap = new HashMap<String, ExecutorService>();
 		
@@ -117,6 +159,181 @@ public class ImageManager implements ImageFileBasicOperation{
 
 		if (!mDownloadPath.exists())
 			mDownloadPath.mkdir();
+		DiskCache old = mDiskCache;
+		if (old != null && old.getDirectory().equals(mDownloadPath))
+			return;
+		// its evictions would remove rows of files in the new directory
+		if (old != null)
+			old.close();
+		mDiskCache = new DiskCache(mDownloadPath, mDiskCacheSize, mCacheExecutor, mAccessTimeSource,
+				mEvictionListener);
+		if (mPackedMaxEntrySize > 0)
+			usePackedCache(mPackedCacheSize, mPackedMaxEntrySize);
+		resetReconciler();
+	}
+
+	private final DiskCache.AccessTimeSource mAccessTimeSource = new DiskCache.AccessTimeSource() {
+		@Override
+		public Map<Long, Long> loadAccessTimes() {
+			return mIndex.loadAccessTimes();
+		}
+	};
+
+	private final DiskCache.EvictionListener mEvictionListener = new DiskCache.EvictionListener() {
+		@Override
+		public void onEvicted(long id, long bytes) {
+			if (DEBUG_CACHE)
+				Log.v(TAG, "evict file " + id + " (" + bytes + " bytes)");
+			mIndex.remove(id);
+			mStats.recordDiskEviction();
+		}
+	};
+
+	/**
+	 * Replace the index mapping url and attributes to cache files, e.g. with
+	 * a {@link JournalCacheIndex} to keep lookups off SQLite. Call it before
+	 * the first image is requested: entries of the previous index are not
+	 * carried over and their files are left for the disk cache to evict.
+	 * The previous index is flushed and closed on the cache thread.
+	 */
+	public void setCacheIndex(CacheIndex index) {
+		final CacheIndex old = mIndex;
+		mIndex = index;
+		resetReconciler();
+		if (old != null && old != index) {
+			// after whatever is queued still using it
+			mCacheExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					old.close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Switch to a {@link JournalCacheIndex} kept next to the download path.
+	 */
+	public void useJournalIndex() {
+		setCacheIndex(new JournalCacheIndex(new File(mDownloadPath.getParentFile(), mDownloadPath.getName()
+				+ ".journal"), mDownloadPath, mCacheExecutor));
+	}
+
+	public CacheIndex getCacheIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * A cache file was used: it moves to the end of the eviction order and
+	 * its access time gets written with the next batch.
+	 */
+	private void recordDiskAccess(long id) {
+		mDiskCache.recordAccess(id);
+		PackedDiskCache packed = mPackedCache;
+		if (packed != null)
+			packed.recordAccess(id);
+		mIndex.recordAccess(id);
+	}
+
+	private boolean isOnDisk(long id) {
+		PackedDiskCache packed = mPackedCache;
+		return (packed != null && packed.contains(id)) || mDiskCache.getFile(id).exists();
+	}
+
+	private void removeFromDisk(long id) {
+		PackedDiskCache packed = mPackedCache;
+		if (packed != null)
+			packed.remove(id);
+		mDiskCache.remove(id);
+	}
+
+	/**
+	 * A cache file was committed, {@link DiskCache.Editor#commit()} already
+	 * told the disk cache.
+	 *
+	 * @param info
+	 *            what the file decodes to, so reading it back skips the
+	 *            bounds pass
+	 */
+	private void recordDiskWrite(long id, ImageInfo info) {
+		mIndex.setImageInfo(id, info);
+		mIndex.recordAccess(id);
+	}
+
+	/**
+	 * Write access times collected since the last batch now instead of at
+	 * the next flush interval.
+	 */
+	public void flushAccessTimes() {
+		mIndex.flushAsync();
+	}
+
+	/**
+	 * Bound the files kept in the download path. The least recently used ones
+	 * are deleted, together with their database rows, from a background
+	 * thread. 0 removes the limit.
+	 */
+	public void setDiskCacheSize(long bytes) {
+		mDiskCacheSize = bytes;
+		mDiskCache.setMaxSize(bytes);
+	}
+
+	/**
+	 * Store network images that are displayed as downloaded with their
+	 * original bytes instead of re-encoding the decoded bitmap. On by
+	 * default; saves the encode and its quality loss, and a JPEG usually
+	 * takes much less space than the PNG a high quality image is encoded to.
+	 */
+	public void setStoreOriginals(boolean storeOriginals) {
+		mStoreOriginals = storeOriginals;
+	}
+
+	public DiskCache getDiskCache() {
+		return mDiskCache;
+	}
+
+	/**
+	 * Keep cache entries of at most {@code maxEntryBytes}, e.g. thumbnails,
+	 * in a {@link PackedDiskCache} of {@code maxBytes} instead of a file
+	 * each, so reading one is no longer an open, read and close. Larger
+	 * entries and raw downloads stay in files. Call it before the first image
+	 * is requested; the budget of the files is separate. Calling it again
+	 * for the same download path only changes the limits.
+	 */
+	public void usePackedCache(long maxBytes, int maxEntryBytes) {
+		if (maxEntryBytes <= 0 || maxEntryBytes > PackedDiskCache.DEFAULT_SEGMENT_SIZE / 4) {
+			throw new IllegalArgumentException("maxEntryBytes must be in 1.."
+					+ PackedDiskCache.DEFAULT_SEGMENT_SIZE / 4);
+		}
+		mPackedCacheSize = maxBytes;
+		mPackedMaxEntrySize = maxEntryBytes;
+		File directory = new File(mDownloadPath, PACKED_CACHE_DIR);
+		final PackedDiskCache old = mPackedCache;
+		if (old != null && old.getDirectory().equals(directory)) {
+			old.setMaxSize(maxBytes);
+			return;
+		}
+		if (old != null) {
+			// queued before the new instance loads, two instances must never
+			// append to the same segments
+			mCacheExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					old.close();
+				}
+			});
+		}
+		mPackedCache = new PackedDiskCache(directory, maxBytes, PackedDiskCache.DEFAULT_SEGMENT_SIZE,
+				mCacheExecutor, mAccessTimeSource, mEvictionListener);
+		resetReconciler();
+	}
+
+	/**
+	 * @return the packed store of small entries, null unless
+	 *         {@link #usePackedCache} enabled it
+	 */
+	public PackedDiskCache getPackedCache() {
+		return mPackedCache;
 	}
 
 	public String getDownloadPath() {
@@ -139,7 +356,6 @@ public class ImageManager implements ImageFileBasicOperation{
 		if (TextUtils.isEmpty(host) || TextUtils.isEmpty(path)) {
 			return null;
 		}
-		resetPurgeTimer();
 
 		String url = host + path;
 		if (TextUtils.isEmpty(params) == false)
@@ -152,7 +368,6 @@ public class ImageManager implements ImageFileBasicOperation{
 		if (TextUtils.isEmpty(url)) {
 			return null;
 		}
-		resetPurgeTimer();
 
 		return setupGetProcess(new UrlInfo(url), attr);
 	}
@@ -169,9 +384,7 @@ public class ImageManager implements ImageFileBasicOperation{
         for(retry=0; retry<MAX_RETRY && bitmap == null; ++retry) {
             try {
                 if (loadBitmap) {
-                    if (id != null) {
-                        bitmap = getBitmapFromCache(id, attr);
-                    }
+                    bitmap = getBitmapFromCache(id, url, attr);
                     if (bitmap == null) {
                         if (DEBUG_CACHE)
                             Log.v(TAG, "download new");
@@ -182,7 +395,8 @@ public class ImageManager implements ImageFileBasicOperation{
                     }
                 } else {
                     // just make sure bitmap exist
-                    if (id != null && new File(mDownloadPath, id).exists() == true) {
+                    if (id != null && isOnDisk(Long.parseLong(id))) {
+                        recordDiskAccess(Long.parseLong(id));
                         if (DEBUG_CACHE)
                             Log.v(TAG, "exist in file");
                     } else {
@@ -210,8 +424,13 @@ public class ImageManager implements ImageFileBasicOperation{
 
     public String getImagePath(String url, ImageAttribute attr) {
         String id = getImageId(url, attr);
-        File file = new File(mDownloadPath, id);
-        if( id != null && file.exists() == true) {
+        if (id == null)
+            return null;
+        File file = mDiskCache.getFile(Long.parseLong(id));
+        if(file.exists() == false)
+            unpack(Long.parseLong(id));
+        if(file.exists() == true) {
+            recordDiskAccess(Long.parseLong(id));
             return file.getAbsolutePath();
         }
         return null;
@@ -229,7 +448,7 @@ public class ImageManager implements ImageFileBasicOperation{
 		if(id == null || (attr != null && attr.shouldLoadFromThread())) {
 			getProcess(id, info, attr);
 		} else {
-			bitmap = getBitmapFromCache(id, attr);
+			bitmap = getBitmapFromCache(id, info.getUniquePath(), attr);
 			removePotentialView(info.getUniquePath(), attr);
 			doneProcess(info.getUniquePath(), attr, bitmap);
 		}
@@ -253,23 +472,17 @@ public class ImageManager implements ImageFileBasicOperation{
 	private Bitmap setupGetProcess(UrlInfo url, ImageAttribute attr) {
 		Bitmap bitmap = null;
 		String id = getImageId(url.getUniquePath(), attr);
-		if(id != null) {
-			// exist, determine how to load bitmap
-			if(attr != null && attr.shouldLoadFromThread()) {
-				getProcess(id, url, attr);
-				
-			} else {
-				removePotentialView(url.getUniquePath(), attr);
-				bitmap = getBitmapFromCache(id, attr);
-				if(bitmap != null)
-					doneProcess(url.getUniquePath(), attr, bitmap);
-				else
-					getProcess(id, url, attr);
-			}
-		}
-		else {
-			// need download
+		if(attr != null && attr.shouldLoadFromThread()) {
 			getProcess(id, url, attr);
+		} else {
+			// id is null when this size was never loaded, a larger one may
+			// still be in memory
+			removePotentialView(url.getUniquePath(), attr);
+			bitmap = getBitmapFromCache(id, url.getUniquePath(), attr);
+			if(bitmap != null)
+				doneProcess(url.getUniquePath(), attr, bitmap);
+			else
+				getProcess(id, url, attr);
 		}
 		return bitmap;
 	}
@@ -305,7 +518,7 @@ public class ImageManager implements ImageFileBasicOperation{
 				} catch (IllegalStateException e) {
 					// this happened when ImageView was destroyed by main UI thread 
 					// Just catch it and ignore this error -- 2013-05-31 Camge
-					e.printStackTrace();
+					Log.w(TAG, "can't set bitmap to destroyed view", e);
 				}
 			} else {
 				if (attr.viewAttr != null && attr.viewAttr.failResId != -1) {
@@ -319,7 +532,7 @@ public class ImageManager implements ImageFileBasicOperation{
 	private Bitmap getDrawableBitmap(Drawable drawable, ImageAttribute attr) {
 		String cacheIndex = getImageId(
 				Integer.toString(attr.viewAttr.defaultResId), attr);
-		Bitmap bm = getBitmapFromCache(cacheIndex, attr);
+		Bitmap bm = getBitmapFromCache(cacheIndex, null, attr);
 		if (bm == null) {
 			if(DEBUG)
 				Log.v(TAG, "getDrawableBitmap : generate");
@@ -328,13 +541,13 @@ public class ImageManager implements ImageFileBasicOperation{
 				bm.eraseColor(Color.TRANSPARENT);
 			} else {
 				drawable.setBounds(0, 0, attr.getMaxWidth(), attr.getMaxHeight());
-				bm = Bitmap.createBitmap(attr.getMaxWidth(), attr.getMaxHeight(),
+				bm = ImageUtil.createBitmap(attr.getMaxWidth(), attr.getMaxHeight(),
 						Bitmap.Config.ARGB_8888);
 				bm.eraseColor(Color.TRANSPARENT);
 				Canvas canvas = new Canvas(bm);
 				drawable.draw(canvas);
 			}
-			setBitmapToCache(bm, cacheIndex);
+			setBitmapToCache(bm, cacheIndex, null, attr);
 		} else {
 			if(DEBUG)
 				Log.v(TAG, "getDrawableBitmap : use cache");
@@ -479,27 +692,31 @@ public class ImageManager implements ImageFileBasicOperation{
 		}
 	}
 
-	private void downloadRawBitmap(UrlInfo url) {
+	/**
+	 * @return the id of the downloaded file, null if the download failed;
+	 *         the cache then holds nothing new for the url
+	 */
+	private String downloadRawBitmap(UrlInfo url) {
 		URL drl;
+		long start = System.nanoTime();
+		InputStream input = null;
+		DiskCache.Editor editor = null;
 		try {
 			drl = new URL(url.getDownloadUrl());
 			URLConnection connection = drl.openConnection();
 			connection.connect();
-			// this will be useful so that you can show a typical 0-100%
-			// progress bar
-			int fileLength = connection.getContentLength();
 
 			// download the file
 			
-			String id = Long.toString(setImageExist(url.getUniquePath(), null));
+			long id = setImageExist(url.getUniquePath(), null);
 
-			File file = new File(mDownloadPath, id);
-			
-			InputStream input = new BufferedInputStream(drl.openStream());
-			OutputStream output = new FileOutputStream(
-					file.getAbsoluteFile());
+			// into a temp file, a failed or interrupted download never
+			// replaces the cache file
+			editor = mDiskCache.edit(id);
+			input = new BufferedInputStream(connection.getInputStream());
+			OutputStream output = editor.newOutputStream();
 
-			byte data[] = new byte[1024];
+			byte data[] = new byte[8192];
 			long total = 0;
 			int count;
 			while ((count = input.read(data)) != -1) {
@@ -507,15 +724,32 @@ public class ImageManager implements ImageFileBasicOperation{
 				output.write(data, 0, count);
 			}
 
-			output.flush();
-			output.close();
-			input.close();
+			editor.commit();
+			PackedDiskCache packed = mPackedCache;
+			if (packed != null)
+				packed.remove(id);
+			mStats.recordNetworkFetch(total, System.nanoTime() - start, true);
+			mStats.recordPassthroughWrite(total);
+			recordDiskWrite(id, LocalImage.readImageInfo(editor.getFile().getAbsolutePath()));
+			return Long.toString(id);
 		} catch (MalformedURLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.e(TAG, "bad url " + url.getDownloadUrl(), e);
+			mStats.recordNetworkFetch(0, System.nanoTime() - start, false);
+			return null;
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.e(TAG, "can't download " + url.getDownloadUrl(), e);
+			mStats.recordNetworkFetch(0, System.nanoTime() - start, false);
+			return null;
+		} finally {
+			// deletes the temp file unless committed
+			if (editor != null)
+				editor.abort();
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
 		}
 	}
 
@@ -527,35 +761,51 @@ public class ImageManager implements ImageFileBasicOperation{
                     Log.v(TAG, "getBitmap() cacheId=" + imageId + " url=" + url.getDownloadUrl());
                 if (imageId != null && url.isMediaStoreFile() == false) {
                     // downloaded before, just need load it from thread
-                    bitmap = getBitmapFromCache(imageId, attr);
+                    bitmap = getBitmapFromCache(imageId, url.getUniquePath(), attr);
                     if (bitmap == null) {
                         Log.e(TAG, "image [" + imageId + "] file been deleted");
                         // if null means file been deleted from user, need process again
-                        mWritableDb.delete(ImageTable.TABLE_NAME, ImageTable.COLUMN_ID + "=?", new String[]{imageId});
+                        removeFromDisk(Long.parseLong(imageId));
+                        mIndex.remove(Long.parseLong(imageId));
                     }
                 }
 
-                if (imageId == null || bitmap == null) {
+                if (imageId == null && url.isMediaStoreFile() == false) {
+                    // not loaded at this size yet
+                    bitmap = getBitmapFromVariant(url.getUniquePath(), attr);
+                }
+
+                if (bitmap == null) {
                     BaseImage image = mFactory.getImage(mContext, url.getDownloadUrl(), attr);
+                    InternetImage fetch = image instanceof InternetImage ? (InternetImage) image : null;
                     if (attr != null && attr.containsAttribute()) {
                         // trying to get image without any modify
                         String pureId = getImageId(url.getDownloadUrl(), null);
-                        bitmap = getBitmapFromCache(pureId, attr);
+                        bitmap = getBitmapFromCache(pureId, null, attr);
                         if (bitmap != null) {
                             if (DEBUG_CACHE)
                                 Log.v(TAG, "modify from origin");
                             image.setBitmap(bitmap);
+                            fetch = null;
                         } else {
                             if (DEBUG_CACHE)
                                 Log.v(TAG, "no exist, download new");
                         }
                         image = mFactory.postProcessImage(mContext, url.getDownloadUrl(), attr, image);
                     }
+                    long start = System.nanoTime();
                     bitmap = image.getBitmap();
+                    if (fetch != null) {
+                        mStats.recordNetworkFetch(Math.max(0, fetch.getByteCount()), System.nanoTime() - start,
+                                bitmap != null);
+                    }
                     if (url.isMediaStoreFile() == false) {
                         // do not cache thumbnails come from MediaStore
-                        imageId = setBitmapToFile(bitmap, url.getUniquePath(), attr);
-                        setBitmapToCache(bitmap, imageId);
+                        if (bitmap != null && canStoreOriginal(fetch, image))
+                            imageId = setDataToFile(fetch.getData(), bitmap, url.getUniquePath(), attr);
+                        else
+                            imageId = setBitmapToFile(bitmap, url.getUniquePath(), attr);
+                        setBitmapToCache(bitmap, imageId, url.getUniquePath(), attr);
                     }
                 }
             } catch (OutOfMemoryError e) {
@@ -598,60 +848,185 @@ public class ImageManager implements ImageFileBasicOperation{
 		return null;
 	}
 
-	private Bitmap getBitmapFromCache(String cacheIndex, ImageAttribute attr) throws OutOfMemoryError{
-		if(TextUtils.isEmpty(cacheIndex))
-			return null;
-		
-		// First try the memory cache
-		synchronized (sMemoryCache) {
-			final Bitmap bitmap = sMemoryCache.get(cacheIndex);
+	/**
+	 * @return the database row id behind a cache index, or -1 if it is not one
+	 */
+	private static long parseId(String cacheIndex) {
+		if (TextUtils.isEmpty(cacheIndex))
+			return -1;
+		try {
+			return Long.parseLong(cacheIndex);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param url
+	 *            source of the image, lets a larger cached size of it answer
+	 *            the request; null to only accept an exact match
+	 */
+	private Bitmap getBitmapFromCache(String cacheIndex, String url, ImageAttribute attr) throws OutOfMemoryError{
+		return getBitmapFromCache(parseId(cacheIndex), url, attr);
+	}
+
+	private Bitmap getBitmapFromCache(long id, String url, ImageAttribute attr) throws OutOfMemoryError{
+		if(id >= 0) {
+			// First try the memory cache
+			final String partition = attr != null ? attr.getCacheName() : null;
+			final Bitmap bitmap = mMemoryCache.partition(partition).get(id);
 			if (bitmap != null) {
 				if (DEBUG_CACHE)
-					Log.v(TAG, "get bitmap from memory cache: "+cacheIndex);
-				// Bitmap found in hard cache
-				// Move element to first position, so that it is removed last
-				sMemoryCache.remove(cacheIndex);
-				sMemoryCache.put(cacheIndex, bitmap);
+					Log.v(TAG, "get bitmap from memory cache: "+id);
 				return bitmap;
 			}
+
+			// Then bitmaps the hard cache let go but the VM did not collect yet
+			final Bitmap softBitmap = mSecondLevelCache.take(id);
+			if (softBitmap != null) {
+				if (DEBUG_CACHE)
+					Log.v(TAG, "get bitmap from second level cache: "+id);
+				mOffHeapCache.remove(id);
+				putMemoryCache(id, url, attr, softBitmap);
+				return softBitmap;
+			}
+
+			// Then pixels copied off the heap, a memcpy instead of a decode
+			if (mOffHeapCache.isEnabled()) {
+				final Bitmap copy = mOffHeapCache.take(id, mBitmapPool.isEnabled() ? mBitmapPool : null);
+				if (copy != null) {
+					if (DEBUG_CACHE)
+						Log.v(TAG, "get bitmap from off-heap cache: "+id);
+					putMemoryCache(id, url, attr, copy);
+					return copy;
+				}
+			}
 		}
 
-		File file = new File(mDownloadPath, cacheIndex);
+		// Then a larger size of the same image. Not cached under this id: it
+		// may be the very bitmap of the larger size, which must not be pooled
+		// while still in use, and scaling again is cheaper than decoding.
+		final Bitmap scaled = getBitmapFromVariant(url, attr);
+		if (scaled != null)
+			return scaled;
+
+		if(id < 0)
+			return null;
+
+		final PackedDiskCache packed = mPackedCache;
+		if (packed != null) {
+			long start = System.nanoTime();
+			byte[] data = packed.get(id);
+			if (data != null) {
+				Bitmap bm = attr != null
+						? ImageUtil.decodeByteArray(data, attr.getMaxWidth(), attr.getMaxHeight(), attr.highQuality())
+						: ImageUtil.decodeByteArray(data, 0, 0, false);
+				if (bm != null) {
+					mStats.recordPackedDecode(System.nanoTime() - start);
+					mIndex.recordAccess(id);
+					if (DEBUG_CACHE)
+						Log.v(TAG, "get bitmap from packed cache: "+id);
+					putMemoryCache(id, url, attr, bm);
+					return bm;
+				}
+				Log.w(TAG, "dropping undecodable packed entry " + id);
+				packed.remove(id);
+			}
+		}
+
+		File file = mDiskCache.getFile(id);
 		if (file.exists()) {
 			LocalImage image = null;
 			image = new LocalImage(mContext, file.getAbsolutePath());
+			ImageInfo info = mIndex.getImageInfo(id);
+			image.setImageInfo(info);
 			if(attr != null) {
                 if (attr.getMaxHeight() != 0 && attr.getMaxWidth() != 0) {
                     image.setImaggMaxSize(attr.getMaxWidth(), attr.getMaxHeight());
                 }
                 image.setHighQuality(attr.highQuality());
             }
+            long start = System.nanoTime();
             Bitmap bm = image.getBitmap();
             if (bm != null) {
+                mStats.recordDiskHit(System.nanoTime() - start, info != null);
+                recordDiskAccess(id);
                 if (DEBUG_CACHE)
                     Log.v(TAG, "get bitmap from file cache: "+file.getAbsolutePath());
-                synchronized (sMemoryCache) {
-                    sMemoryCache.put(cacheIndex, bm);
-                }
+                putMemoryCache(id, url, attr, bm);
                 return bm;
             }
+            // files are committed whole, so this is damage from outside,
+            // e.g. a file of an older version or a bad sector; fetch again
+            Log.w(TAG, "dropping undecodable cache file " + file.getAbsolutePath());
+            mDiskCache.remove(id);
 		}
+		mStats.recordDiskMiss();
 		return null;
 	}
 
-	private void setBitmapToCache(Bitmap bitmap, String cacheIndex) throws OutOfMemoryError{
-		if(bitmap == null)
+	/**
+	 * Scale down the smallest cached size of {@code url} that is at least as
+	 * large as {@code attr} asks for.
+	 *
+	 * @return null if there is no such size or the attributes change more
+	 *         than the size
+	 */
+	private Bitmap getBitmapFromVariant(String url, ImageAttribute attr) {
+		final String group = variantGroup(url, attr);
+		final int maxWidth = attr != null ? attr.getMaxWidth() : 0;
+		final int maxHeight = attr != null ? attr.getMaxHeight() : 0;
+		if (group == null || maxWidth == 0 || maxHeight == 0)
+			return null;
+		VariantIndex.Variant variant = mVariants.find(group, maxWidth, maxHeight);
+		if (variant == null)
+			return null;
+		Bitmap source = mMemoryCache.partition(variant.partition).get(variant.id);
+		if (source == null) {
+			mVariants.remove(variant.id);
+			return null;
+		}
+		Bitmap bitmap = source;
+		// keep both sides at least as large as asked, like a sampled decode
+		float scale = Math.max((float) maxWidth / source.getWidth(), (float) maxHeight / source.getHeight());
+		if (scale < 1f) {
+			bitmap = Bitmap.createScaledBitmap(source, Math.max(1, Math.round(source.getWidth() * scale)),
+					Math.max(1, Math.round(source.getHeight() * scale)), true);
+		}
+		mStats.recordVariantHit();
+		if (DEBUG_CACHE)
+			Log.v(TAG, "get bitmap from " + variant + " for " + maxWidth + "x" + maxHeight);
+		return bitmap;
+	}
+
+	/**
+	 * @return the key shared by every size of the image, null if the image
+	 *         can not be served by scaling another size
+	 */
+	private static String variantGroup(String url, ImageAttribute attr) {
+		if (url == null || attr == null || attr.containsAttribute() == false || attr.isScalable() == false)
+			return null;
+		return url + '\n' + attr.getVariantAttr();
+	}
+
+	private void setBitmapToCache(Bitmap bitmap, String cacheIndex, String url, ImageAttribute attr) throws OutOfMemoryError{
+		long id = parseId(cacheIndex);
+		if(bitmap == null || id < 0)
 			return;
 		if (DEBUG_CACHE) {
 			Log.v(TAG, "add memory cache, index:" + cacheIndex);
 		}
-		synchronized (sMemoryCache) {
-			if(sMemoryCache.get(cacheIndex) == null) {
-				sMemoryCache.put(cacheIndex, bitmap);
-			} else {
-				sMemoryCache.remove(cacheIndex);
-				sMemoryCache.put(cacheIndex, bitmap);
-			}
+		putMemoryCache(id, url, attr, bitmap);
+	}
+
+	private void putMemoryCache(long id, String url, ImageAttribute attr, Bitmap bitmap) {
+		final String partition = attr != null ? attr.getCacheName() : null;
+		mMemoryCache.partitionForPut(partition).put(id, bitmap);
+		mMemoryCache.putDone(partition);
+		String group = variantGroup(url, attr);
+		if (group != null) {
+			mVariants.put(group, id, partition, attr.getMaxWidth(), attr.getMaxHeight(), bitmap.getWidth(),
+					bitmap.getHeight());
 		}
 	}
 	
@@ -659,78 +1034,143 @@ public class ImageManager implements ImageFileBasicOperation{
 		if(bitmap == null)
 			return null;
 		
-		String id = Long.toString(setImageExist(url, attr));
+		long id = setImageExist(url, attr);
+		Bitmap.CompressFormat format = ImageUtil.getCacheFormat(bitmap, attr);
+
+		if (mPackedCache != null) {
+			// encode into memory first, the size decides where it goes
+			ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+			long start = System.nanoTime();
+			if (compress(bitmap, format, attr, out)) {
+				long encodeNanos = System.nanoTime() - start;
+				byte[] data = out.toByteArray();
+				if (writeData(id, data, url)) {
+					mStats.recordEncodedWrite(format.name(), data.length, encodeNanos);
+					recordDiskWrite(id, ImageInfo.of(bitmap));
+				}
+			}
+			return Long.toString(id);
+		}
 
-		File file = new File(mDownloadPath, id);
-		FileOutputStream out;
+		DiskCache.Editor editor = null;
 		try {
-			out = new FileOutputStream(file);
-			if(attr != null && attr.highQuality())
-				bitmap.compress(Bitmap.CompressFormat.PNG, 90, out);
-			else
-				bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
-			if (DEBUG_CACHE) {
-				Log.v(TAG, "setBitmapToFile() filename:" + file.getAbsolutePath());
+			editor = mDiskCache.edit(id);
+			OutputStream out = editor.newOutputStream();
+			long start = System.nanoTime();
+			boolean written = compress(bitmap, format, attr, out);
+			long encodeNanos = System.nanoTime() - start;
+			if (written) {
+				editor.commit();
+				mStats.recordEncodedWrite(format.name(), editor.getFile().length(), encodeNanos);
+				recordDiskWrite(id, ImageInfo.of(bitmap));
+				if (DEBUG_CACHE) {
+					Log.v(TAG, "setBitmapToFile() filename:" + editor.getFile().getAbsolutePath());
+				}
 			}
-		} catch (FileNotFoundException e) {
-			Log.e(TAG, e.getMessage());
+		} catch (IOException e) {
+			Log.e(TAG, "can't write " + url, e);
+		} finally {
+			if (editor != null)
+				editor.abort();
 		}
-		return id;
+		return Long.toString(id);
 	}
 	
-	public String getImageId(String url, ImageAttribute attr) {
-		String id = null;
-		Cursor c = null;
-		
-		if(attr == null || attr.containsAttribute() == false) {
-			c = mWritableDb.query(ImageTable.TABLE_NAME, 
-					new String[] { ImageTable.COLUMN_ID }, 
-					ImageTable.COLUMN_IMAGE_URL + " =? AND " + ImageTable.COLUMN_ATTRIBUTE + " =? ",
-					new String[] { url, "NULL" }, null, null, ImageTable.DEFAULT_SORT_ORDER);
-		} else {
-			c = mWritableDb.query(ImageTable.TABLE_NAME, 
-			new String[] { ImageTable.COLUMN_ID }, 
-			ImageTable.COLUMN_IMAGE_URL + " =? AND " + ImageTable.COLUMN_ATTRIBUTE + " =? ", 
-			new String[] { url , attr.getStringAttr() }, null, null, ImageTable.DEFAULT_SORT_ORDER);	
-		}
-		if(c != null) {
-			if(c.getCount() > 0) {
-				c.moveToFirst();
-				id = c.getString(0);
+	/**
+	 * @return true if the bitmap {@code image} gave is exactly what
+	 *         {@code fetch} downloaded, so the download can be stored as is
+	 */
+	private boolean canStoreOriginal(InternetImage fetch, BaseImage image) {
+		if (mStoreOriginals == false || fetch == null || image != fetch)
+			return false; // not downloaded, or decorated after the download
+		byte[] data = fetch.getData();
+		// a sampled decode is cheaper to read back re-encoded at its size, and
+		// LocalImage would apply an EXIF rotation InternetImage did not
+		return data != null && fetch.isSampled() == false && ImageUtil.getExifRotation(data) == 0;
+	}
+
+	/**
+	 * Store an image as it was downloaded, without an encode or its quality
+	 * loss.
+	 */
+	private String setDataToFile(byte[] data, Bitmap decoded, String url, ImageAttribute attr) {
+		long id = setImageExist(url, attr);
+		if (writeData(id, data, url)) {
+			mStats.recordPassthroughWrite(data.length);
+			// not sampled and not rotated, the bitmap is the size of the data
+			recordDiskWrite(id, ImageInfo.of(decoded));
+		}
+		return Long.toString(id);
+	}
+
+	private static boolean compress(Bitmap bitmap, Bitmap.CompressFormat format, ImageAttribute attr,
+			OutputStream out) {
+		int quality = attr != null ? attr.getCacheQuality() : ImageAttribute.DEFAULT_CACHE_QUALITY;
+		return bitmap.compress(format, quality, out);
+	}
+
+	/**
+	 * Store encoded data as the entry of {@code id}: packed if it is small
+	 * enough and packing is on, else in its file. The other copy, if any, is
+	 * removed.
+	 */
+	private boolean writeData(long id, byte[] data, String url) {
+		PackedDiskCache packed = mPackedCache;
+		if (packed != null && data.length <= mPackedMaxEntrySize && packed.put(id, data)) {
+			mDiskCache.remove(id);
+			if (DEBUG_CACHE) {
+				Log.v(TAG, "writeData() packed " + id);
 			}
-			c.close();
+			return true;
 		}
-		return id;
+		if (writeFile(id, data, url) == false)
+			return false;
+		if (packed != null)
+			packed.remove(id);
+		return true;
+	}
+
+	private boolean writeFile(long id, byte[] data, String url) {
+		DiskCache.Editor editor = null;
+		try {
+			editor = mDiskCache.edit(id);
+			editor.newOutputStream().write(data);
+			editor.commit();
+			if (DEBUG_CACHE) {
+				Log.v(TAG, "writeFile() filename:" + editor.getFile().getAbsolutePath());
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "can't write " + url, e);
+			return false;
+		} finally {
+			if (editor != null)
+				editor.abort();
+		}
+	}
+
+	/**
+	 * Move a packed entry out to its file, for callers that need a path.
+	 */
+	private void unpack(long id) {
+		PackedDiskCache packed = mPackedCache;
+		byte[] data = packed != null ? packed.get(id) : null;
+		if (data != null && writeFile(id, data, Long.toString(id)))
+			packed.remove(id);
+	}
+
+	public String getImageId(String url, ImageAttribute attr) {
+		long id = mIndex.find(url, indexAttribute(attr));
+		return id != CacheIndex.NO_ID ? Long.toString(id) : null;
 	}
 	
 	public long setImageExist(String url, ImageAttribute attr) {
-		long DBId = -1;
-		
-		String attrStr = null;
-		if(attr != null && attr.containsAttribute() == true) {
-			attrStr = attr.getStringAttr();
-		}
-		
-		Cursor cursor = mWritableDb.query(ImageTable.TABLE_NAME,
-				new String[] { ImageTable.COLUMN_ID },
-				ImageTable.COLUMN_IMAGE_URL + "=? AND "
-						+ ImageTable.COLUMN_ATTRIBUTE + "=?", new String[] {
-						url, attrStr==null?"NULL":attrStr }, null,
-				null, null);
-		if (cursor != null && cursor.getCount() > 0) {
-			cursor.moveToFirst();
-			DBId = cursor.getLong(0);
-			cursor.close();
-		} else {
-			ContentValues cv = new ContentValues();
-			cv.put(ImageTable.COLUMN_IMAGE_URL, url);
-			cv.put(ImageTable.COLUMN_ATTRIBUTE, attrStr==null?"NULL":attrStr);
-			cv.put(ImageTable.COLUMN_ACCESS_TIME, Calendar.getInstance()
-					.getTime().toGMTString());
-			DBId = mWritableDb.insert(ImageTable.TABLE_NAME, "", cv);
-		}
-		return DBId;
-	}	
+		return mIndex.findOrInsert(url, indexAttribute(attr));
+	}
+
+	private static String indexAttribute(ImageAttribute attr) {
+		return attr != null && attr.containsAttribute() ? attr.getStringAttr() : null;
+	}
 
 	public interface ImageDoneCallback {
 		public void imageDone(Object id, Bitmap bitmap, ImageView imageView);
@@ -740,44 +1180,376 @@ public class ImageManager implements ImageFileBasicOperation{
 		public void getImageFail(Object arg0);
 	}
 
-	private static final int HARD_CACHE_CAPACITY = 10 * 1024 * 1024;
-	private static final int DELAY_BEFORE_PURGE = 10 * 1000; // in milliseconds
+	// default share of the VM heap used by the memory cache
+	public static final float DEFAULT_MEMORY_CACHE_PERCENT = 0.125f;
+	private static final int MIN_MEMORY_CACHE_SIZE = 1024 * 1024;
 
-	// Hard cache, with a fixed maximum capacity and a life duration
-	private final LruCache<String, Bitmap> sMemoryCache = new LruCache<String, Bitmap>(
-			HARD_CACHE_CAPACITY) {
-		protected int sizeOf(String key, Bitmap value) {
-			int size = (value.getRowBytes() * value.getHeight());
-			if (DEBUG_BUFFER)
-				Log.v(TAG, "current size:" + size + " - " + this.size() + "/"
-						+ HARD_CACHE_CAPACITY);
-			return size;
+	// Hard cache keyed by database row id, sized from the heap and resizable
+	// at runtime, split into partitions named by ImageAttribute.getCacheName()
+	private final PartitionedCache<LongLruCache<Bitmap>> mMemoryCache = new PartitionedCache<LongLruCache<Bitmap>>(
+			calculateMemoryCacheSize(Runtime.getRuntime().maxMemory(), DEFAULT_MEMORY_CACHE_PERCENT)) {
+		@Override
+		protected LongLruCache<Bitmap> newCache(String name, int maxSize) {
+			return newBitmapCache(maxSize);
+		}
+	};
+
+	private LongLruCache<Bitmap> newBitmapCache(int maxSize) {
+		return new LongLruCache<Bitmap>(maxSize) {
+			protected int sizeOf(long key, Bitmap value) {
+				int size = (value.getRowBytes() * value.getHeight());
+				if (DEBUG_BUFFER)
+					Log.v(TAG, "current size:" + size + " - " + this.size() + "/"
+							+ this.maxSize());
+				return size;
+
+			}
 
+			protected void entryRemoved(boolean evicted, long key,
+					Bitmap oldValue, Bitmap newValue) {
+				if (DEBUG_BUFFER)
+					Log.v(TAG, "entryRemoved:" + this.size() + "/"
+							+ this.maxSize());
+				mVariants.remove(key);
+				if (evicted)
+					recordDiskAccess(key); // the file was in use until now
+				// copy before the pool may hand the bitmap out to be drawn over;
+				// not while freeing memory, the tier is trimmed right after
+				if (evicted && mOffHeapCache.isEnabled() && mPressureTrims.get() == 0)
+					mOffHeapCache.put(key, oldValue);
+				if (evicted && mBitmapPool.put(oldValue) == false) {
+					mSecondLevelCache.put(key, oldValue);
+				}
+			}
+		};
+	}
+
+	// sizes of the same image in the hard cache, see getBitmapFromVariant()
+	private final VariantIndex mVariants = new VariantIndex();
+
+	// bitmaps evicted from the hard cache, kept while nothing else needs the heap
+	private final ReferenceCache<Long, Bitmap> mSecondLevelCache = new ReferenceCache<Long, Bitmap>(false);
+
+	// disabled until setOffHeapCacheSize() gives it a budget
+	private final OffHeapCache mOffHeapCache = new OffHeapCache(0);
+
+	// trimMemory() or clearCache() calls in progress, possibly on the UI
+	// thread; their evictions are not copied off-heap
+	private final AtomicInteger mPressureTrims = new AtomicInteger();
+
+	// disabled until setBitmapPoolSize() gives it a budget
+	private final BitmapPool mBitmapPool = new BitmapPool(0);
+
+	private static int calculateMemoryCacheSize(long available, float percent) {
+		if (percent <= 0f || percent > 0.8f) {
+			throw new IllegalArgumentException("percent must be in (0, 0.8]");
 		}
+		long size = (long) (available * percent);
+		if (size < MIN_MEMORY_CACHE_SIZE)
+			size = MIN_MEMORY_CACHE_SIZE;
+		if (size > Integer.MAX_VALUE)
+			size = Integer.MAX_VALUE;
+		return (int) size;
+	}
+
+	/**
+	 * Size the memory cache as a fraction of {@link Runtime#maxMemory()}.
+	 * Shrinking evicts the least recently used bitmaps immediately.
+	 */
+	public void setMemoryCachePercent(float percent) {
+		setMemoryCacheSize(calculateMemoryCacheSize(Runtime.getRuntime().maxMemory(), percent));
+	}
+
+	/**
+	 * Size the memory cache as a fraction of the device memory class reported
+	 * by {@link ActivityManager#getMemoryClass()}.
+	 */
+	public void setMemoryCachePercentOfMemoryClass(float percent) {
+		ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+		long memoryClass = am.getMemoryClass() * 1024L * 1024L;
+		setMemoryCacheSize(calculateMemoryCacheSize(memoryClass, percent));
+	}
+
+	/**
+	 * Set the memory cache budget, partitions included. The default partition
+	 * gets what {@link #setCachePartition} quotas leave.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the partition quotas take all of {@code bytes}
+	 */
+	public void setMemoryCacheSize(int bytes) {
+		if (DEBUG_CACHE)
+			Log.v(TAG, "memory cache size " + mMemoryCache.maxSize() + " -> " + bytes);
+		mMemoryCache.setMaxSize(bytes);
+	}
+
+	/**
+	 * Filter what may displace the least recently used bitmap once the memory
+	 * cache is full, e.g. {@code new TinyLfuPolicy(200)} so a fast fling
+	 * through one-off thumbnails can not flush the images every screen uses.
+	 * null admits everything, which is the default.
+	 */
+	public void setMemoryCacheAdmissionPolicy(AdmissionPolicy policy) {
+		mMemoryCache.partition(PartitionedCache.DEFAULT_PARTITION).setAdmissionPolicy(policy);
+	}
+
+	/**
+	 * Give images whose {@link ImageAttribute#getCacheName()} is {@code name}
+	 * a memory cache of their own, so they can not be evicted by other
+	 * features and vice versa. The quota comes out of the memory cache
+	 * budget; the default partition shrinks by it and gets it back on
+	 * {@link #removeCachePartition}.
+	 *
+	 * @param borrow
+	 *            let the partition grow into capacity other partitions leave
+	 *            unused; it is handed back when they need it
+	 * @throws IllegalArgumentException
+	 *             if the quota would leave the default partition nothing
+	 */
+	public void setCachePartition(String name, int quotaBytes, boolean borrow) {
+		mMemoryCache.setPartition(name, quotaBytes, borrow);
+	}
+
+	public void removeCachePartition(String name) {
+		mMemoryCache.removePartition(name);
+	}
+
+	/**
+	 * @return the memory cache of a partition, for its statistics or an
+	 *         admission policy of its own
+	 */
+	public MemoryCache<Long, Bitmap> getCachePartition(String name) {
+		return mMemoryCache.partition(name);
+	}
 
-		protected void entryRemoved(boolean evicted, String key,
-				Bitmap oldValue, Bitmap newValue) {
-			if (DEBUG_BUFFER)
-				Log.v(TAG, "entryRemoved:" + this.size() + "/"
-						+ HARD_CACHE_CAPACITY);
+	/**
+	 * Give evicted bitmaps a second life as decode targets and decorator
+	 * canvases. Only enable this when bitmaps leaving the memory cache are no
+	 * longer shown, i.e. the memory cache comfortably holds everything on
+	 * screen, since a pooled bitmap gets drawn over. 0 disables the pool.
+	 */
+	public void setBitmapPoolSize(int bytes) {
+		mBitmapPool.setMaxSize(bytes);
+		ImageUtil.setBitmapPool(bytes > 0 ? mBitmapPool : null);
+	}
+
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Keep raw pixel copies of bitmaps evicted from the memory cache in
+	 * direct buffers outside the Java heap, so bringing one back is a memcpy
+	 * instead of a file read and decode. Costs native memory of up to
+	 * {@code bytes}; 0 disables the tier, which is the default.
+	 */
+	public void setOffHeapCacheSize(int bytes) {
+		mOffHeapCache.setMaxSize(bytes);
+	}
+
+	public OffHeapCache getOffHeapCache() {
+		return mOffHeapCache;
+	}
+
+	/**
+	 * @return the soft reference tier behind the memory cache; its hit count
+	 *         is the number of disk decodes it saved
+	 */
+	public ReferenceCache<Long, Bitmap> getSecondLevelCache() {
+		return mSecondLevelCache;
+	}
+
+	/**
+	 * @return the memory cache budget in bytes, shared by all partitions
+	 */
+	public int getMemoryCacheMaxSize() {
+		return mMemoryCache.maxSize();
+	}
+
+	/**
+	 * @return bytes currently held by the memory cache
+	 */
+	public int getMemoryCacheSize() {
+		return mMemoryCache.size();
+	}
+
+	/**
+	 * @return a snapshot of hit, miss, eviction and size counters of every
+	 *         cache tier; cheap enough to call from production code
+	 */
+	public CacheStats getStats() {
+		LinkedHashMap<String, CacheStats.Tier> partitions = new LinkedHashMap<String, CacheStats.Tier>();
+		long hits = 0, misses = 0, puts = 0, evictions = 0, bytes = 0, maxBytes = 0;
+		for (String name : mMemoryCache.partitionNames()) {
+			MemoryCache<Long, Bitmap> cache = mMemoryCache.partition(name);
+			CacheStats.Tier tier = CacheStats.Tier.of(cache);
+			partitions.put(name, tier);
+			hits += tier.hitCount;
+			misses += tier.missCount;
+			puts += tier.putCount;
+			evictions += tier.evictionCount;
+			bytes += tier.bytes;
+			maxBytes += mMemoryCache.quota(name);
 		}
-	};
+		CacheStats.Tier memory = new CacheStats.Tier(hits, misses, puts, evictions, bytes, maxBytes);
+		CacheStats.Tier secondLevel = new CacheStats.Tier(mSecondLevelCache.hitCount(),
+				mSecondLevelCache.missCount(), mSecondLevelCache.putCount(), mSecondLevelCache.clearedCount(), 0, 0);
+		CacheStats.Tier offHeap = new CacheStats.Tier(mOffHeapCache.hitCount(), mOffHeapCache.missCount(),
+				mOffHeapCache.putCount(), mOffHeapCache.evictionCount(), mOffHeapCache.size(), mOffHeapCache.maxSize());
+		CacheStats.Tier pool = new CacheStats.Tier(mBitmapPool.hitCount(), mBitmapPool.missCount(),
+				mBitmapPool.putCount(), mBitmapPool.evictionCount(), mBitmapPool.size(), mBitmapPool.maxSize());
+		DiskCache diskCache = mDiskCache;
+		CacheStats.Tier disk = mStats.diskTier(diskCache.size(), diskCache.maxSize());
+		PackedDiskCache packedCache = mPackedCache;
+		CacheStats.Tier packed = packedCache != null ? new CacheStats.Tier(packedCache.hitCount(),
+				packedCache.missCount(), packedCache.putCount(), packedCache.evictionCount(), packedCache.size(),
+				packedCache.maxSize()) : new CacheStats.Tier(0, 0, 0, 0, 0, 0);
+		return new CacheStats(memory, partitions, secondLevel, offHeap, pool, disk, mStats.writes(),
+				disk.hitCount, mStats.diskDecodeTimeNanos(), mStats.diskSizedDecodeCount(),
+				mStats.diskSizedDecodeTimeNanos(), packed, mStats.packedDecodeTimeNanos(),
+				mStats.networkFetchCount(), mStats.networkFailureCount(), mStats.networkBytes(),
+				mStats.networkTimeNanos(), mStats.variantHitCount());
+	}
 
-	private final Handler purgeHandler = new Handler();
-	private final Runnable purger = new Runnable() {
-		@Override
-		public void run() {
-			clearCache();
+	public void dumpStats() {
+		Log.i(TAG, getStats().toString());
+	}
+
+	/**
+	 * Log {@link #getStats()} every {@code intervalMillis} from a background
+	 * thread, 0 stops it.
+	 */
+	public synchronized void setStatsDumpInterval(long intervalMillis) {
+		if (mStatsDump != null) {
+			mStatsDump.cancel(false);
+			mStatsDump = null;
 		}
-	};
+		if (intervalMillis > 0) {
+			mStatsDump = mCacheExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					dumpStats();
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Every {@code intervalMillis}, check the next batch of index entries
+	 * and cache files on a background thread and remove entries without a
+	 * file, files without an entry and duplicate entries. 0 stops it. A
+	 * whole pass over a large cache takes several runs, see
+	 * {@link CacheReconciler}.
+	 */
+	public synchronized void setReconcileInterval(long intervalMillis) {
+		if (mReconcile != null) {
+			mReconcile.cancel(false);
+			mReconcile = null;
+		}
+		if (intervalMillis > 0) {
+			mReconcile = mCacheExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					CacheReconciler.Report report = getCacheReconciler().run();
+					if (DEBUG_CACHE)
+						Log.v(TAG, "reconcile " + report);
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the reconciler of the current download path and index, its
+	 *         {@link CacheReconciler#total()} tells what it reclaimed
+	 */
+	public synchronized CacheReconciler getCacheReconciler() {
+		if (mReconciler == null) {
+			mReconciler = new CacheReconciler(mDiskCache, mPackedCache, mIndex, CacheReconciler.DEFAULT_GRACE_MS);
+		}
+		return mReconciler;
+	}
+
+	private synchronized void resetReconciler() {
+		mReconciler = null;
+	}
+
+	// Same values as android.content.ComponentCallbacks2, which is not in
+	// the SDK this library builds against.
+	public static final int TRIM_MEMORY_COMPLETE = 80;
+	public static final int TRIM_MEMORY_MODERATE = 60;
+	public static final int TRIM_MEMORY_BACKGROUND = 40;
+	public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+	public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+	public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
 
 	public void clearCache() {
-		sMemoryCache.evictAll();
+		mPressureTrims.incrementAndGet();
+		try {
+			mMemoryCache.evictAll();
+		} finally {
+			mPressureTrims.decrementAndGet();
+		}
+		mOffHeapCache.evictAll();
+		mBitmapPool.evictAll();
+		mSecondLevelCache.clear();
+	}
+
+	/**
+	 * Forward {@code ComponentCallbacks2.onTrimMemory(level)} from the
+	 * Application or Activity. The deeper the level, the less of the memory
+	 * cache is kept; only {@link #TRIM_MEMORY_COMPLETE} drops everything.
+	 */
+	public void onTrimMemory(int level) {
+		if (DEBUG_CACHE)
+			Log.v(TAG, "onTrimMemory level=" + level);
+		if (level >= TRIM_MEMORY_UI_HIDDEN) {
+			// in the background the process may be killed any time
+			flushAccessTimes();
+		}
+		if (level >= TRIM_MEMORY_COMPLETE) {
+			clearCache();
+		} else if (level >= TRIM_MEMORY_MODERATE) {
+			trimMemory(0.25f);
+		} else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+			trimMemory(0.5f);
+		} else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+			trimMemory(0.25f);
+		} else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+			trimMemory(0.5f);
+		} else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+			trimMemory(0.75f);
+		}
+	}
+
+	/**
+	 * Forward {@code ComponentCallbacks.onLowMemory()}.
+	 */
+	public void onLowMemory() {
+		clearCache();
 	}
 
-	private void resetPurgeTimer() {
-		purgeHandler.removeCallbacks(purger);
-		purgeHandler.postDelayed(purger, DELAY_BEFORE_PURGE);
+	/**
+	 * Evict least recently used bitmaps until the memory cache, the off-heap
+	 * tier and the bitmap pool hold at most {@code keepFraction} of their
+	 * budget. Budgets are not
+	 * changed, so the caches grow back once memory is available.
+	 */
+	public void trimMemory(float keepFraction) {
+		if (keepFraction < 0f || keepFraction > 1f) {
+			throw new IllegalArgumentException("keepFraction must be in [0, 1]");
+		}
+		mPressureTrims.incrementAndGet();
+		try {
+			mMemoryCache.trimToFraction(keepFraction);
+		} finally {
+			mPressureTrims.decrementAndGet();
+		}
+		mOffHeapCache.trimToSize((int) (mOffHeapCache.maxSize() * keepFraction));
+		mBitmapPool.trimToSize((int) (mBitmapPool.maxSize() * keepFraction));
+		if (keepFraction < 0.5f) {
+			mSecondLevelCache.clear();
+		}
 	}
 
 	/**
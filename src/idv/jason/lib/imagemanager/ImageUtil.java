@@ -1,9 +1,12 @@
 package idv.jason.lib.imagemanager;
 
+import idv.jason.lib.imagemanager.cache.BitmapPool;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -16,6 +19,7 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.ExifInterface;
+import android.os.Build;
 import android.util.Log;
 
 
@@ -25,6 +29,151 @@ public class ImageUtil {
 	private static final int OPTIONS_SCALE_UP = 0x1;
 	public static final int OPTIONS_RECYCLE_INPUT = 0x2;
 
+	private static volatile BitmapPool sBitmapPool;
+	// BitmapFactory.Options.inBitmap and inMutable only exist from API 11
+	private static Field sInBitmapField;
+	private static Field sInMutableField;
+	// Bitmap.CompressFormat.WEBP only exists from API 14
+	private static final Bitmap.CompressFormat sWebpFormat = findCompressFormat("WEBP");
+
+	static {
+		if (Build.VERSION.SDK_INT >= 11) {
+			try {
+				sInBitmapField = BitmapFactory.Options.class.getField("inBitmap");
+				sInMutableField = BitmapFactory.Options.class.getField("inMutable");
+			} catch (NoSuchFieldException e) {
+				sInBitmapField = null;
+				sInMutableField = null;
+			}
+		}
+	}
+
+	private static Bitmap.CompressFormat findCompressFormat(String name) {
+		try {
+			return Bitmap.CompressFormat.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return how to encode {@code bitmap} for the disk cache as
+	 *         {@code attr} asks, see {@link ImageAttribute.CacheFormat}
+	 */
+	public static Bitmap.CompressFormat getCacheFormat(Bitmap bitmap, ImageAttribute attr) {
+		ImageAttribute.CacheFormat format = attr != null ? attr.getCacheFormat()
+				: ImageAttribute.CacheFormat.DEFAULT;
+		switch (format) {
+		case JPEG:
+			return Bitmap.CompressFormat.JPEG;
+		case PNG:
+			return Bitmap.CompressFormat.PNG;
+		case WEBP:
+			if (sWebpFormat != null)
+				return sWebpFormat;
+			// fall through
+		case AUTO:
+			return bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+		default:
+			return attr != null && attr.highQuality() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+		}
+	}
+
+	public static void setBitmapPool(BitmapPool pool) {
+		sBitmapPool = pool;
+	}
+
+	/**
+	 * Same as {@link Bitmap#createBitmap(int, int, Config)} but takes a
+	 * cleared bitmap from the pool when one of that shape is available.
+	 */
+	public static Bitmap createBitmap(int width, int height, Config config) {
+		BitmapPool pool = sBitmapPool;
+		if (pool != null) {
+			Bitmap bitmap = pool.get(width, height, config);
+			if (bitmap != null)
+				return bitmap;
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Prepare options, whose bounds were decoded already, so the decode lands
+	 * in a pooled bitmap. Before API 19 inBitmap needs the exact dimensions,
+	 * so only decodes without sub-sampling are offered a bitmap.
+	 *
+	 * @return true if a pooled bitmap was attached
+	 */
+	public static boolean addInBitmapOptions(BitmapFactory.Options options) {
+		BitmapPool pool = sBitmapPool;
+		if (pool == null || pool.isEnabled() == false || sInBitmapField == null)
+			return false;
+		try {
+			// decode mutable so the result can be pooled once evicted
+			sInMutableField.setBoolean(options, true);
+			options.inPurgeable = false;
+			if (options.inSampleSize > 1 || options.outWidth <= 0 || options.outHeight <= 0)
+				return false;
+			Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Config.ARGB_8888;
+			Bitmap inBitmap = pool.getDirty(options.outWidth, options.outHeight, config);
+			if (inBitmap != null) {
+				sInBitmapField.set(options, inBitmap);
+				return true;
+			}
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "can't set inBitmap", e);
+		}
+		return false;
+	}
+
+	static void clearInBitmapOptions(BitmapFactory.Options options) {
+		try {
+			sInBitmapField.set(options, null);
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "can't clear inBitmap", e);
+		}
+	}
+
+	/**
+	 * Decode with a pooled bitmap when possible, falling back to a plain
+	 * decode if the platform refuses to reuse it.
+	 */
+	public static Bitmap decodeFile(String path, BitmapFactory.Options options) {
+		if (addInBitmapOptions(options)) {
+			try {
+				return BitmapFactory.decodeFile(path, options);
+			} catch (IllegalArgumentException e) {
+				clearInBitmapOptions(options);
+			}
+		}
+		return BitmapFactory.decodeFile(path, options);
+	}
+
+	/**
+	 * Decode an encoded image the way {@link LocalImage} decodes a file:
+	 * sampled down to the max size, if one is given, into a pooled bitmap
+	 * when possible.
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int maxWidth, int maxHeight, boolean highQuality) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		if (maxWidth != 0 && maxHeight != 0) {
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = calculateInSampleSize(options, 0, maxWidth, maxHeight);
+		}
+		options.inPurgeable = true;
+		options.inPreferredConfig = highQuality ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+		if (addInBitmapOptions(options)) {
+			try {
+				return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			} catch (IllegalArgumentException e) {
+				clearInBitmapOptions(options);
+			}
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+
 	/**
 	 * 
 	 * @param strImageName
@@ -84,7 +233,7 @@ public class ImageUtil {
 	}
 
 	public static Bitmap getRoundedCornerBitmap(Bitmap bitmap, int pixels) {
-		Bitmap output = Bitmap.createBitmap(bitmap.getWidth(),
+		Bitmap output = createBitmap(bitmap.getWidth(),
 				bitmap.getHeight(), Config.ARGB_8888);
 		Canvas canvas = new Canvas(output);
 
@@ -276,4 +425,53 @@ public class ImageUtil {
 
 		return inSampleSize;
 	}
+
+	/**
+	 * Read the EXIF orientation of an encoded JPEG without decoding it.
+	 *
+	 * @return rotation in degrees as {@link LocalImage#rotationForImage}
+	 *         returns it, 0 if the data is not a JPEG or has no orientation
+	 */
+	public static int getExifRotation(byte[] data) {
+		if (data.length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8)
+			return 0;
+		int offset = 2;
+		while (offset + 4 <= data.length && (data[offset] & 0xff) == 0xff) {
+			int marker = data[offset + 1] & 0xff;
+			if (marker == 0xda || marker == 0xd9)
+				break; // image data starts, no more metadata
+			int length = readShort(data, offset + 2, false);
+			int tiff = offset + 10;
+			if (marker == 0xe1 && length >= 16 && tiff + 8 <= data.length && data[offset + 4] == 'E'
+					&& data[offset + 5] == 'x' && data[offset + 6] == 'i' && data[offset + 7] == 'f') {
+				boolean little = data[tiff] == 'I';
+				int ifd = tiff + readInt(data, tiff + 4, little);
+				if (ifd < tiff || ifd + 2 > data.length)
+					return 0;
+				int count = readShort(data, ifd, little);
+				for (int i = 0; i < count; ++i) {
+					int entry = ifd + 2 + i * 12;
+					if (entry + 12 > data.length)
+						break;
+					if (readShort(data, entry, little) == 0x0112) {
+						return (int) LocalImage.exifOrientationToDegrees(readShort(data, entry + 8, little));
+					}
+				}
+				return 0;
+			}
+			offset += 2 + length;
+		}
+		return 0;
+	}
+
+	private static int readShort(byte[] data, int offset, boolean little) {
+		int b0 = data[offset] & 0xff, b1 = data[offset + 1] & 0xff;
+		return little ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] data, int offset, boolean little) {
+		int high = readShort(data, offset + (little ? 2 : 0), little);
+		int low = readShort(data, offset + (little ? 0 : 2), little);
+		return (high << 16) | low;
+	}
 }
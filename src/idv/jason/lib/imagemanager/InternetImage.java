@@ -1,11 +1,16 @@
 package idv.jason.lib.imagemanager;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import com.jason.lib.imagemanager.conn.HttpInvoker;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.TextUtils;
+import android.util.Log;
 
 public class InternetImage extends BaseImage {
 	public static final String TAG = InternetImage.class.getSimpleName();
@@ -14,6 +19,9 @@ public class InternetImage extends BaseImage {
 	private Context mContext;
 	private String mUrl;
 	private Bitmap mBitmap;
+	private long mByteCount = -1;
+	private byte[] mData;
+	private boolean mSampled = false;
 	
 	private boolean mHighQuality = false;
 
@@ -37,25 +45,87 @@ public class InternetImage extends BaseImage {
 		}
 
 		if (HttpInvoker.isNetworkAvailable(mContext)) {
+			// fetch once, both decode passes read the same bytes
+			byte[] data = fetch();
+			if (data == null)
+				return null;
+			mData = data;
+
 			BitmapFactory.Options options = new BitmapFactory.Options();
 
 			if(IMAGE_MAX_WIDTH != 0 && IMAGE_MAX_HEIGHT != 0) {
 				options.inJustDecodeBounds = true;
-				BitmapFactory.decodeStream(HttpInvoker.getInputStreamFromUrl(mUrl),
-						null, options);
+				BitmapFactory.decodeByteArray(data, 0, data.length, options);
 				options.inJustDecodeBounds = false;
 				
 				if(mHighQuality == false)
 					options.inPreferredConfig = Bitmap.Config.RGB_565;
 				options.inSampleSize = ImageUtil.calculateInSampleSize(options, 0, IMAGE_MAX_WIDTH, IMAGE_MAX_HEIGHT);
+				mSampled = options.inSampleSize > 1;
 			}
 			options.inDither = false;
-			mBitmap = BitmapFactory.decodeStream(
-					HttpInvoker.getInputStreamFromUrl(mUrl), null, options);
+			if (ImageUtil.addInBitmapOptions(options)) {
+				try {
+					mBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+					return mBitmap;
+				} catch (IllegalArgumentException e) {
+					// pooled bitmap refused, decode into a new one
+					ImageUtil.clearInBitmapOptions(options);
+				}
+			}
+			mBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
 		}
 		return mBitmap;
 	}
 
+	/**
+	 * @return bytes downloaded by {@link #getBitmap()}, -1 if nothing was
+	 *         fetched
+	 */
+	public long getByteCount() {
+		return mByteCount;
+	}
+
+	/**
+	 * @return the encoded image as downloaded by {@link #getBitmap()}, null
+	 *         if it was not fetched
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	/**
+	 * @return true if the bitmap was decoded at a fraction of the downloaded
+	 *         size
+	 */
+	public boolean isSampled() {
+		return mSampled;
+	}
+
+	private byte[] fetch() {
+		InputStream input = HttpInvoker.getInputStreamFromUrl(mUrl);
+		if (input == null)
+			return null;
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream(16 * 1024);
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = input.read(buffer)) != -1) {
+				output.write(buffer, 0, count);
+			}
+			mByteCount = output.size();
+			return output.toByteArray();
+		} catch (IOException e) {
+			Log.w(TAG, "I/O error while reading " + mUrl, e);
+			return null;
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
 	@Override
 	public void setBitmap(Bitmap bm) {
 		mBitmap = bm;
@@ -1,5 +1,7 @@
 package idv.jason.lib.imagemanager;
 
+import idv.jason.lib.imagemanager.db.ImageInfo;
+
 import java.io.IOException;
 
 import android.content.Context;
@@ -15,6 +17,7 @@ public class LocalImage extends BaseImage{
 	private int IMAGE_MAX_HEIGHT = 0;
 	private Bitmap mBitmap = null;
 	private boolean mHighQuality = false;
+	private ImageInfo mInfo = null;
 	public static String LOCAL_FILE_PREFIX = "file://";
 	
 	public LocalImage(Context context, String path) {
@@ -29,6 +32,14 @@ public class LocalImage extends BaseImage{
 	public void setHighQuality(boolean highQuality) {
 		mHighQuality = highQuality;
 	}
+
+	/**
+	 * Size and rotation of the file are known, e.g. from the cache index, so
+	 * it is only opened for the decode itself.
+	 */
+	public void setImageInfo(ImageInfo info) {
+		mInfo = info != null && info.width > 0 && info.height > 0 ? info : null;
+	}
 	
 	public Bitmap getBitmap() throws OutOfMemoryError{
 		if (mBitmap != null) {
@@ -38,36 +49,29 @@ public class LocalImage extends BaseImage{
 		if(mPath.contains(LOCAL_FILE_PREFIX))
 			mPath = mPath.substring(7);
 
-        int rotation = rotationForImage(mPath);
+        int rotation = mInfo != null ? mInfo.orientation : rotationForImage(mPath);
 
         //Decode image size
         BitmapFactory.Options options = new BitmapFactory.Options();
-        if(IMAGE_MAX_WIDTH != 0 && IMAGE_MAX_HEIGHT != 0) {
+        if(mInfo != null) {
+	        options.outWidth = mInfo.width;
+	        options.outHeight = mInfo.height;
+        } else {
 	        options.inJustDecodeBounds = true;
-			
 	        BitmapFactory.decodeFile(mPath, options);
-	
-	        //Decode with inSampleSize
 	        options.inJustDecodeBounds = false;
-	        
-	        options.inPurgeable = true;
-	        if(mHighQuality == false)
-				options.inPreferredConfig = Bitmap.Config.RGB_565;
-	        else
-	        	options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+
+        //Decode with inSampleSize
+        options.inPurgeable = true;
+        if(mHighQuality == false)
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+        else
+        	options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if(IMAGE_MAX_WIDTH != 0 && IMAGE_MAX_HEIGHT != 0) {
 	        options.inSampleSize = ImageUtil.calculateInSampleSize(options, rotation, IMAGE_MAX_WIDTH, IMAGE_MAX_HEIGHT);
-	        mBitmap = BitmapFactory.decodeFile(mPath, options);
-        } else {
-	        options.inJustDecodeBounds = true;
-        	BitmapFactory.decodeFile(mPath, options);
-	        options.inJustDecodeBounds = false;
-        	options.inPurgeable = true;
-	        if(mHighQuality == false)
-				options.inPreferredConfig = Bitmap.Config.RGB_565;
-	        else
-	        	options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-	        mBitmap = BitmapFactory.decodeFile(mPath, options);
         }
+        mBitmap = ImageUtil.decodeFile(mPath, options);
         
         // Rotate to right direction
         Matrix matrix = new Matrix();
@@ -84,6 +88,21 @@ public class LocalImage extends BaseImage{
 	    return mBitmap;
 	}
 	
+	/**
+	 * Read the size and rotation of an image file, for
+	 * {@link #setImageInfo(ImageInfo)} on later decodes.
+	 *
+	 * @return an info of size 0 if the file does not decode
+	 */
+	public static ImageInfo readImageInfo(String path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return new ImageInfo(0, 0, null, 0);
+		return new ImageInfo(options.outWidth, options.outHeight, null, rotationForImage(path));
+	}
+
 	public static int rotationForImage(String filename) {
 		int rotation = 0;
 		try {
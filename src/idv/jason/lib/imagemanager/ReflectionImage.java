@@ -32,7 +32,7 @@ public class ReflectionImage extends ImageDecorator {
 			flipHorizontalMatrix.postTranslate(0,originBitmap.getHeight());
 			
 			// Create a new bitmap with same width but taller to fit reflection
-			mBitmap = Bitmap.createBitmap(width,
+			mBitmap = ImageUtil.createBitmap(width,
 					height/3, Config.ARGB_8888);
 
 			// Create a new Canvas with the bitmap that's big enough for
@@ -0,0 +1,26 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+/**
+ * Decides whether a new entry is worth more than the entry it would push out
+ * of a full cache. Keys are passed as 64-bit hashes so policies work for any
+ * key type without boxing.
+ */
+public interface AdmissionPolicy {
+	/**
+	 * Called on every lookup. The insert after a lookup missed is the same
+	 * request and is not recorded again.
+	 */
+	public void record(long keyHash);
+
+	/**
+	 * @return true if {@code candidateHash} should be inserted at the cost of
+	 *         evicting {@code victimHash}
+	 */
+	public boolean admit(long candidateHash, long victimHash);
+}
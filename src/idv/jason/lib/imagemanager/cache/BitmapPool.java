@@ -0,0 +1,187 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Byte-bounded pool of mutable bitmaps, bucketed by width, height and config,
+ * so decoders and decorators can draw into an existing allocation instead of
+ * creating a new one. The oldest pooled bitmap is recycled when the pool goes
+ * over its budget. A pool with a max size of 0 is disabled and rejects
+ * everything.
+ */
+public class BitmapPool {
+	private final HashMap<Long, LinkedList<Bitmap>> mGroups = new HashMap<Long, LinkedList<Bitmap>>();
+	// every pooled bitmap, oldest first
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+	private int mSize;
+	private int mMaxSize;
+
+	private int mPutCount;
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	public BitmapPool(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Offer a bitmap that nobody draws anymore.
+	 *
+	 * @return true if the pool took ownership of the bitmap
+	 */
+	public boolean put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || bitmap.isMutable() == false
+				|| bitmap.getConfig() == null) {
+			return false;
+		}
+		int size = sizeOf(bitmap);
+		synchronized (this) {
+			if (size > mMaxSize) {
+				return false;
+			}
+			Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			LinkedList<Bitmap> group = mGroups.get(key);
+			if (group == null) {
+				group = new LinkedList<Bitmap>();
+				mGroups.put(key, group);
+			}
+			group.addLast(bitmap);
+			mOrder.addLast(bitmap);
+			mSize += size;
+			mPutCount++;
+		}
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * @return a pooled bitmap with exactly these dimensions and config, with
+	 *         undefined content, or null on a miss.
+	 */
+	public synchronized Bitmap getDirty(int width, int height, Bitmap.Config config) {
+		if (config == null) {
+			return null;
+		}
+		LinkedList<Bitmap> group = mGroups.get(key(width, height, config));
+		if (group == null || group.isEmpty()) {
+			mMissCount++;
+			return null;
+		}
+		Bitmap bitmap = group.removeLast();
+		mOrder.remove(bitmap);
+		mSize -= sizeOf(bitmap);
+		mHitCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Same as {@link #getDirty} but the returned bitmap is cleared to
+	 * transparent, ready to be used like a fresh
+	 * {@link Bitmap#createBitmap(int, int, Bitmap.Config)}.
+	 */
+	public Bitmap get(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = getDirty(width, height, config);
+		if (bitmap != null) {
+			bitmap.eraseColor(Color.TRANSPARENT);
+		}
+		return bitmap;
+	}
+
+	public void setMaxSize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		synchronized (this) {
+			mMaxSize = maxSize;
+		}
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Recycle the oldest pooled bitmaps until at most {@code maxSize} bytes
+	 * remain.
+	 */
+	public void trimToSize(int maxSize) {
+		while (true) {
+			Bitmap bitmap;
+			synchronized (this) {
+				if (mSize <= maxSize || mOrder.isEmpty()) {
+					break;
+				}
+				bitmap = mOrder.removeFirst();
+				Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+				LinkedList<Bitmap> group = mGroups.get(key);
+				group.remove(bitmap);
+				if (group.isEmpty()) {
+					mGroups.remove(key);
+				}
+				mSize -= sizeOf(bitmap);
+				mEvictionCount++;
+			}
+			bitmap.recycle();
+		}
+	}
+
+	public void evictAll() {
+		trimToSize(-1);
+	}
+
+	public synchronized boolean isEnabled() {
+		return mMaxSize > 0;
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int maxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int putCount() {
+		return mPutCount;
+	}
+
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	public synchronized int evictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int accesses = mHitCount + mMissCount;
+		int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+		return String.format("BitmapPool[maxSize=%d,size=%d/%d,hits=%d,misses=%d,puts=%d,evictions=%d,hitRate=%d%%]",
+				mMaxSize, mOrder.size(), mSize, mHitCount, mMissCount, mPutCount, mEvictionCount, hitPercent);
+	}
+
+	private static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static Long key(int width, int height, Bitmap.Config config) {
+		return Long.valueOf(((long) width << 32) | ((long) height << 8) | config.ordinal());
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import idv.jason.lib.imagemanager.db.CacheIndex;
+
+import java.io.File;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Brings the {@link CacheIndex} and the files of the {@link DiskCache} back
+ * in line: entries whose file is gone, files without an entry, and entries
+ * that duplicate the url and attribute of another one are removed.
+ *
+ * <p>
+ * Each {@link #run()} does a bounded amount of work, one page of entries and
+ * a few of the {@link DiskCache#SHARD_COUNT} subdirectories, and continues
+ * where the previous one stopped, so it can be scheduled on the cache
+ * thread without holding it for long. Entries and files touched within the
+ * grace period are left alone: an entry is inserted before its file is
+ * written, and a file may belong to an entry inserted since it was listed.
+ * </p>
+ *
+ * <p>
+ * Entries of the {@link PackedDiskCache} count as files; packed entries
+ * without an index entry are already dropped when it is opened.
+ * </p>
+ */
+public class CacheReconciler {
+	private static final String TAG = CacheReconciler.class.getSimpleName();
+
+	public static final int DEFAULT_ENTRIES_PER_RUN = 200;
+	public static final int DEFAULT_SHARDS_PER_RUN = 8;
+	public static final long DEFAULT_GRACE_MS = 10 * 60 * 1000;
+
+	/**
+	 * What one or more runs checked and removed.
+	 */
+	public static class Report {
+		public final long entriesChecked;
+		public final long filesChecked;
+		/** entries whose file was gone */
+		public final long orphanEntries;
+		/** files without an entry, and their bytes */
+		public final long orphanFiles;
+		public final long orphanFileBytes;
+		/** entries duplicating another one, and the bytes of their files */
+		public final long duplicateEntries;
+		public final long duplicateBytes;
+
+		public Report(long entriesChecked, long filesChecked, long orphanEntries, long orphanFiles,
+				long orphanFileBytes, long duplicateEntries, long duplicateBytes) {
+			this.entriesChecked = entriesChecked;
+			this.filesChecked = filesChecked;
+			this.orphanEntries = orphanEntries;
+			this.orphanFiles = orphanFiles;
+			this.orphanFileBytes = orphanFileBytes;
+			this.duplicateEntries = duplicateEntries;
+			this.duplicateBytes = duplicateBytes;
+		}
+
+		public Report plus(Report other) {
+			return new Report(entriesChecked + other.entriesChecked, filesChecked + other.filesChecked,
+					orphanEntries + other.orphanEntries, orphanFiles + other.orphanFiles, orphanFileBytes
+							+ other.orphanFileBytes, duplicateEntries + other.duplicateEntries, duplicateBytes
+							+ other.duplicateBytes);
+		}
+
+		public long reclaimedBytes() {
+			return orphanFileBytes + duplicateBytes;
+		}
+
+		public boolean isEmpty() {
+			return orphanEntries == 0 && orphanFiles == 0 && duplicateEntries == 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("checked=%d entries/%d files,orphanEntries=%d,orphanFiles=%d (%d bytes),"
+					+ "duplicates=%d (%d bytes)", entriesChecked, filesChecked, orphanEntries, orphanFiles,
+					orphanFileBytes, duplicateEntries, duplicateBytes);
+		}
+	}
+
+	private static final Report EMPTY = new Report(0, 0, 0, 0, 0, 0, 0);
+
+	private final DiskCache mDiskCache;
+	private final PackedDiskCache mPackedCache;
+	private final CacheIndex mIndex;
+	private final long mGraceMillis;
+	private int mEntriesPerRun = DEFAULT_ENTRIES_PER_RUN;
+	private int mShardsPerRun = DEFAULT_SHARDS_PER_RUN;
+
+	// where the next run continues
+	private long mLastId;
+	private int mNextShard;
+	// whether the entries and the shards were gone over since the last cycle
+	private boolean mEntriesDone;
+	private boolean mShardsDone;
+
+	private Report mCycle = EMPTY;
+	private Report mTotal = EMPTY;
+
+	/**
+	 * @param packedCache
+	 *            null if there is none
+	 */
+	public CacheReconciler(DiskCache diskCache, PackedDiskCache packedCache, CacheIndex index, long graceMillis) {
+		mDiskCache = diskCache;
+		mPackedCache = packedCache;
+		mIndex = index;
+		mGraceMillis = graceMillis;
+	}
+
+	/**
+	 * Bound the work of each run.
+	 */
+	public synchronized void setBatchSize(int entriesPerRun, int shardsPerRun) {
+		if (entriesPerRun <= 0 || shardsPerRun <= 0) {
+			throw new IllegalArgumentException("batch size <= 0");
+		}
+		mEntriesPerRun = entriesPerRun;
+		mShardsPerRun = shardsPerRun;
+	}
+
+	/**
+	 * Check the next batch of entries and files. Blocks on the index and
+	 * file I/O, call it from a background thread.
+	 *
+	 * @return what this run removed
+	 */
+	public synchronized Report run() {
+		// entries of a packed store that is still loading look orphaned
+		if (mPackedCache != null && mPackedCache.isLoaded() == false)
+			return EMPTY;
+		long deadline = System.currentTimeMillis() - mGraceMillis;
+		Report report = checkEntries(deadline).plus(checkFiles(deadline));
+		mCycle = mCycle.plus(report);
+		mTotal = mTotal.plus(report);
+		if (mEntriesDone && mShardsDone) {
+			// everything was gone over once
+			if (mCycle.isEmpty() == false)
+				Log.i(TAG, "reconciled " + mDiskCache.getDirectory() + ": " + mCycle);
+			mCycle = EMPTY;
+			mEntriesDone = false;
+			mShardsDone = false;
+		}
+		return report;
+	}
+
+	/**
+	 * @return what every run so far checked and removed
+	 */
+	public synchronized Report total() {
+		return mTotal;
+	}
+
+	private Report checkEntries(long deadline) {
+		if (mEntriesDone)
+			return EMPTY;
+		Map<Long, Long> page = mIndex.loadAccessTimes(mLastId, mEntriesPerRun);
+		long fromId = mLastId;
+		long orphans = 0;
+		for (Map.Entry<Long, Long> entry : page.entrySet()) {
+			long id = entry.getKey();
+			mLastId = id;
+			if (entry.getValue() < deadline && isOnDisk(id) == false) {
+				mIndex.remove(id);
+				orphans++;
+			}
+		}
+
+		long duplicates = 0, duplicateBytes = 0;
+		if (page.isEmpty() == false) {
+			for (Map.Entry<Long, Long> duplicate : mIndex.findDuplicates(fromId, mLastId).entrySet()) {
+				long kept = duplicate.getValue();
+				// keep the duplicate while the entry found instead has no
+				// file, it may be the one removed next
+				if (kept != CacheIndex.NO_ID && isOnDisk(kept) == false)
+					continue;
+				long id = duplicate.getKey();
+				duplicateBytes += removeFromDisk(id);
+				mIndex.remove(id);
+				duplicates++;
+			}
+		}
+
+		if (page.size() < mEntriesPerRun) {
+			mLastId = 0;
+			mEntriesDone = true;
+		}
+		return new Report(page.size(), 0, orphans, 0, 0, duplicates, duplicateBytes);
+	}
+
+	private Report checkFiles(long deadline) {
+		long checked = 0, orphans = 0, orphanBytes = 0;
+		for (int i = 0; i < mShardsPerRun && mShardsDone == false; ++i) {
+			for (long id : mDiskCache.listShard(mNextShard)) {
+				checked++;
+				File file = mDiskCache.getFile(id);
+				if (file.lastModified() >= deadline || mIndex.contains(id))
+					continue;
+				orphanBytes += mDiskCache.remove(id);
+				orphans++;
+			}
+			if (++mNextShard == DiskCache.SHARD_COUNT) {
+				mNextShard = 0;
+				mShardsDone = true;
+			}
+		}
+		return new Report(0, checked, 0, orphans, orphanBytes, 0, 0);
+	}
+
+	private boolean isOnDisk(long id) {
+		return (mPackedCache != null && mPackedCache.contains(id)) || mDiskCache.getFile(id).exists();
+	}
+
+	private long removeFromDisk(long id) {
+		long bytes = 0;
+		if (mPackedCache != null)
+			bytes += mPackedCache.remove(id);
+		return bytes + mDiskCache.remove(id);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CacheReconciler[" + mTotal + "]";
+	}
+}
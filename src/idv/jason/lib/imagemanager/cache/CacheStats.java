@@ -0,0 +1,230 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the cache counters of every tier, taken by
+ * {@code ImageManager.getStats()}. Counters are cumulative since the process
+ * started, so two snapshots can be subtracted to get rates.
+ */
+public class CacheStats {
+	/**
+	 * Counters of one cache tier. Fields a tier does not track are 0.
+	 */
+	public static class Tier {
+		public final long hitCount;
+		public final long missCount;
+		public final long putCount;
+		public final long evictionCount;
+		public final long bytes;
+		public final long maxBytes;
+
+		public Tier(long hitCount, long missCount, long putCount, long evictionCount, long bytes, long maxBytes) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.putCount = putCount;
+			this.evictionCount = evictionCount;
+			this.bytes = bytes;
+			this.maxBytes = maxBytes;
+		}
+
+		public static Tier of(MemoryCache<?, ?> cache) {
+			return new Tier(cache.hitCount(), cache.missCount(), cache.putCount(), cache.evictionCount(),
+					cache.size(), cache.maxSize());
+		}
+
+		public float hitRate() {
+			long accesses = hitCount + missCount;
+			return accesses != 0 ? (float) hitCount / accesses : 0f;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits=%d,misses=%d,hitRate=%d%%,puts=%d,evictions=%d,bytes=%d/%d", hitCount,
+					missCount, (int) (100 * hitRate()), putCount, evictionCount, bytes, maxBytes);
+		}
+	}
+
+	/**
+	 * Bitmaps encoded into cache files, and the time and space that took.
+	 */
+	public static class Encodes {
+		public final long count;
+		public final long timeNanos;
+		public final long bytes;
+
+		public Encodes(long count, long timeNanos, long bytes) {
+			this.count = count;
+			this.timeNanos = timeNanos;
+			this.bytes = bytes;
+		}
+
+		public float averageMillis() {
+			return count != 0 ? timeNanos / 1000000f / count : 0f;
+		}
+
+		public long averageBytes() {
+			return count != 0 ? bytes / count : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("encodes=%d,avgEncode=%.1fms,avgBytes=%d", count, averageMillis(), averageBytes());
+		}
+	}
+
+	/**
+	 * Cost of writing cache files: bitmaps encoded on the device, in total
+	 * and per format, against downloads stored as they are.
+	 */
+	public static class Writes {
+		public final Encodes encodes;
+		/** keyed by the name of the {@code Bitmap.CompressFormat} */
+		public final Map<String, Encodes> encodesByFormat;
+		public final long passthroughCount;
+		public final long passthroughBytes;
+
+		public Writes(Encodes encodes, Map<String, Encodes> encodesByFormat, long passthroughCount,
+				long passthroughBytes) {
+			this.encodes = encodes;
+			this.encodesByFormat = Collections.unmodifiableMap(new LinkedHashMap<String, Encodes>(
+					encodesByFormat));
+			this.passthroughCount = passthroughCount;
+			this.passthroughBytes = passthroughBytes;
+		}
+
+		public long averagePassthroughBytes() {
+			return passthroughCount != 0 ? passthroughBytes / passthroughCount : 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder().append(encodes);
+			for (Map.Entry<String, Encodes> format : encodesByFormat.entrySet()) {
+				builder.append(',').append(format.getKey()).append('{').append(format.getValue()).append('}');
+			}
+			return builder.append(String.format(",passthroughs=%d,avgPassthrough=%d", passthroughCount,
+					averagePassthroughBytes())).toString();
+		}
+	}
+
+	public final Tier memory;
+	public final Map<String, Tier> partitions;
+	/** Hits are bitmaps recovered after the hard cache evicted them. */
+	public final Tier secondLevel;
+	/** Raw pixel copies in direct buffers, bytes are native memory. */
+	public final Tier offHeap;
+	public final Tier bitmapPool;
+	/** Hits and misses of cache files; puts are files written. */
+	public final Tier disk;
+	public final Writes diskWrites;
+
+	public final long diskDecodeCount;
+	public final long diskDecodeTimeNanos;
+	/** decodes whose size and rotation came from the index, included above */
+	public final long diskSizedDecodeCount;
+	public final long diskSizedDecodeTimeNanos;
+
+	/** Entries packed into segment files, all 0 unless packing is on. */
+	public final Tier packed;
+	public final long packedDecodeTimeNanos;
+
+	public final long networkFetchCount;
+	public final long networkFailureCount;
+	public final long networkBytes;
+	public final long networkTimeNanos;
+
+	/** requests answered by scaling down a larger cached size */
+	public final long variantHitCount;
+
+	public CacheStats(Tier memory, Map<String, Tier> partitions, Tier secondLevel, Tier offHeap, Tier bitmapPool,
+			Tier disk, Writes diskWrites, long diskDecodeCount, long diskDecodeTimeNanos,
+			long diskSizedDecodeCount, long diskSizedDecodeTimeNanos, Tier packed,
+			long packedDecodeTimeNanos, long networkFetchCount, long networkFailureCount, long networkBytes, long networkTimeNanos,
+			long variantHitCount) {
+		this.memory = memory;
+		this.partitions = Collections.unmodifiableMap(new LinkedHashMap<String, Tier>(partitions));
+		this.secondLevel = secondLevel;
+		this.offHeap = offHeap;
+		this.bitmapPool = bitmapPool;
+		this.disk = disk;
+		this.diskWrites = diskWrites;
+		this.diskDecodeCount = diskDecodeCount;
+		this.diskDecodeTimeNanos = diskDecodeTimeNanos;
+		this.diskSizedDecodeCount = diskSizedDecodeCount;
+		this.diskSizedDecodeTimeNanos = diskSizedDecodeTimeNanos;
+		this.packed = packed;
+		this.packedDecodeTimeNanos = packedDecodeTimeNanos;
+		this.networkFetchCount = networkFetchCount;
+		this.networkFailureCount = networkFailureCount;
+		this.networkBytes = networkBytes;
+		this.networkTimeNanos = networkTimeNanos;
+		this.variantHitCount = variantHitCount;
+	}
+
+	/**
+	 * @return average time to decode a bitmap from a cache file, in
+	 *         milliseconds
+	 */
+	public float averageDiskDecodeMillis() {
+		return diskDecodeCount != 0 ? diskDecodeTimeNanos / 1000000f / diskDecodeCount : 0f;
+	}
+
+	/**
+	 * @return average time of decodes that skipped reading the file's size
+	 *         and rotation, in milliseconds; the rest were entries written
+	 *         before the index kept them
+	 */
+	public float averageSizedDiskDecodeMillis() {
+		return diskSizedDecodeCount != 0 ? diskSizedDecodeTimeNanos / 1000000f / diskSizedDecodeCount : 0f;
+	}
+
+	/**
+	 * @return average time to read and decode a packed entry, in
+	 *         milliseconds; compare with {@link #averageDiskDecodeMillis()}
+	 */
+	public float averagePackedDecodeMillis() {
+		return packed.hitCount != 0 ? packedDecodeTimeNanos / 1000000f / packed.hitCount : 0f;
+	}
+
+	/**
+	 * @return average time to fetch and decode a network image, in
+	 *         milliseconds
+	 */
+	public float averageNetworkMillis() {
+		return networkFetchCount != 0 ? networkTimeNanos / 1000000f / networkFetchCount : 0f;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("CacheStats[");
+		builder.append("memory{").append(memory).append('}');
+		for (Map.Entry<String, Tier> partition : partitions.entrySet()) {
+			builder.append(" partition:").append(partition.getKey())
+					.append('{').append(partition.getValue()).append('}');
+		}
+		builder.append(" secondLevel{").append(secondLevel).append('}');
+		builder.append(" offHeap{").append(offHeap).append('}');
+		builder.append(" pool{").append(bitmapPool).append('}');
+		builder.append(" variantHits=").append(variantHitCount);
+		builder.append(" disk{").append(disk)
+				.append(String.format(",decodes=%d,avgDecode=%.1fms,sizedDecodes=%d,avgSizedDecode=%.1fms",
+						diskDecodeCount, averageDiskDecodeMillis(), diskSizedDecodeCount,
+						averageSizedDiskDecodeMillis()))
+				.append(',').append(diskWrites)
+				.append('}');
+		builder.append(" packed{").append(packed)
+				.append(String.format(",avgDecode=%.1fms", averagePackedDecodeMillis())).append('}');
+		builder.append(String.format(" network{fetches=%d,failures=%d,bytes=%d,avgFetch=%.1fms}",
+				networkFetchCount, networkFailureCount, networkBytes, averageNetworkMillis()));
+		return builder.append(']').toString();
+	}
+}
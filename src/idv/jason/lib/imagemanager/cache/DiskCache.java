@@ -0,0 +1,568 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * Byte-bounded directory of cache files named by database row id, evicting
+ * the least recently used file once the total goes over budget.
+ *
+ * <p>
+ * Files are spread over two levels of 16 subdirectories picked by a hash of
+ * the id, e.g. {@code s7/c/1234}, so no directory holds more than a few
+ * hundred files even for large caches. The first level is prefixed so it can
+ * not collide with a file of the flat layout. Files of the older flat layout are
+ * moved on first use and by a one-time background migration.
+ * </p>
+ *
+ * <p>
+ * Files are written through an {@link Editor}: into a temp file that is
+ * synced and then renamed over the entry, so a crash never leaves a
+ * truncated entry behind. Files of the flat layout predate that and are
+ * checked with {@link #isComplete(File)} when they are moved.
+ * </p>
+ *
+ * <p>
+ * Recency is kept in memory and seeded when the cache is opened from the
+ * later of each file's modification time and its persisted access time.
+ * Eviction runs on the given executor, never on the caller's thread, and
+ * reports every deleted file to the {@link EvictionListener} so its database
+ * row can go with it.
+ * </p>
+ */
+public class DiskCache {
+	private static final String TAG = DiskCache.class.getSimpleName();
+
+	/**
+	 * Number of subdirectories files are spread over, see
+	 * {@link #listShard(int)}.
+	 */
+	public static final int SHARD_COUNT = 256;
+
+	private static final String SHARD_PREFIX = "s";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final byte[] PNG_IEND = { 'I', 'E', 'N', 'D', (byte) 0xae, 0x42, 0x60, (byte) 0x82 };
+	private static final String[] HEX = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d",
+			"e", "f" };
+
+	/**
+	 * Notified on the eviction thread after a file was deleted.
+	 */
+	public interface EvictionListener {
+		public void onEvicted(long id, long bytes);
+	}
+
+	/**
+	 * Persisted access times, read once on the background thread when the
+	 * cache is opened.
+	 */
+	public interface AccessTimeSource {
+		/**
+		 * @return id -> last access in epoch milliseconds
+		 */
+		public Map<Long, Long> loadAccessTimes();
+	}
+
+	private final File mDirectory;
+	private final Executor mExecutor;
+	private final AccessTimeSource mAccessTimes;
+	private final EvictionListener mListener;
+
+	// id -> file length, least recently used first
+	private final LinkedHashMap<Long, Long> mEntries = new LinkedHashMap<Long, Long>(64, 0.75f, true);
+	private long mSize;
+	private volatile long mMaxSize;
+
+	private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+	// flat files may still be around until the first scan moved them
+	private volatile boolean mMigrating = true;
+	private volatile boolean mClosed;
+	private final long mOpenedAt = System.currentTimeMillis();
+
+	/**
+	 * @param maxSize
+	 *            budget in bytes, 0 for no limit
+	 * @param accessTimes
+	 *            may be null to go by modification times only
+	 */
+	public DiskCache(File directory, long maxSize, Executor executor, AccessTimeSource accessTimes,
+			EvictionListener listener) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		mExecutor = executor;
+		mAccessTimes = accessTimes;
+		mListener = listener;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mClosed)
+					return;
+				scan();
+				trimToSize(mMaxSize);
+			}
+		});
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return where the file of {@code id} is, whether it exists or not
+	 */
+	public File getFile(long id) {
+		File file = shardFile(id);
+		if (mMigrating && file.exists() == false) {
+			File flat = new File(mDirectory, Long.toString(id));
+			if (flat.isFile()) {
+				migrate(flat, file);
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Same as {@link #getFile(long)} with the directories created, ready to
+	 * write.
+	 */
+	public File getFileForWrite(long id) {
+		File file = getFile(id);
+		File parent = file.getParentFile();
+		if (parent.exists() == false)
+			parent.mkdirs();
+		return file;
+	}
+
+	/**
+	 * Start writing the file of {@code id}. Nothing is visible until
+	 * {@link Editor#commit()}.
+	 */
+	public Editor edit(long id) throws IOException {
+		File target = getFileForWrite(id);
+		File tmp = File.createTempFile(Long.toString(id) + "-w", TMP_SUFFIX, target.getParentFile());
+		return new Editor(id, target, tmp);
+	}
+
+	/**
+	 * A write in progress. Call {@link #abort()} in a finally block, it does
+	 * nothing once committed.
+	 */
+	public final class Editor {
+		private final long mId;
+		private final File mTarget;
+		private final File mTmp;
+		private FileOutputStream mFileOut;
+		private OutputStream mOut;
+		private boolean mDone;
+
+		Editor(long id, File target, File tmp) {
+			mId = id;
+			mTarget = target;
+			mTmp = tmp;
+		}
+
+		public File getFile() {
+			return mTarget;
+		}
+
+		public OutputStream newOutputStream() throws IOException {
+			if (mOut == null) {
+				mFileOut = new FileOutputStream(mTmp);
+				mOut = new BufferedOutputStream(mFileOut, 8192);
+			}
+			return mOut;
+		}
+
+		/**
+		 * Sync the written bytes and move them over the entry.
+		 */
+		public void commit() throws IOException {
+			if (mDone)
+				throw new IllegalStateException("already committed or aborted");
+			if (mOut == null)
+				throw new IllegalStateException("nothing written");
+			try {
+				mOut.flush();
+				mFileOut.getFD().sync();
+			} finally {
+				mOut.close();
+			}
+			if (mTmp.length() == 0 || rename(mTmp, mTarget) == false) {
+				abort();
+				throw new IOException("can't commit " + mTarget);
+			}
+			mDone = true;
+			recordWrite(mId);
+		}
+
+		/**
+		 * Throw away what was written, the entry keeps its previous content.
+		 */
+		public void abort() {
+			if (mDone)
+				return;
+			mDone = true;
+			if (mOut != null) {
+				try {
+					mOut.close();
+				} catch (IOException e) {
+				}
+			}
+			mTmp.delete();
+		}
+	}
+
+	private static boolean rename(File from, File to) {
+		if (from.renameTo(to))
+			return true;
+		// some file systems don't replace on rename
+		to.delete();
+		return from.renameTo(to);
+	}
+
+	/**
+	 * @return false if the file is empty, or a JPEG or PNG file ends before
+	 *         its end marker. Other formats are only checked for emptiness.
+	 */
+	public static boolean isComplete(File file) {
+		long length = file.length();
+		if (length == 0)
+			return false;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			if (length < 2)
+				return true;
+			int b0 = raf.read(), b1 = raf.read();
+			if (b0 == 0xff && b1 == 0xd8) {
+				// JPEG, ends with EOI
+				raf.seek(length - 2);
+				return raf.read() == 0xff && raf.read() == 0xd9;
+			}
+			if (b0 == 0x89 && b1 == 'P') {
+				// PNG, ends with the IEND chunk
+				if (length < PNG_IEND.length)
+					return false;
+				byte[] tail = new byte[PNG_IEND.length];
+				raf.seek(length - tail.length);
+				raf.readFully(tail);
+				return Arrays.equals(tail, PNG_IEND);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private File shardFile(long id) {
+		int hash = (int) LongLruCache.mix(id);
+		File shard = new File(mDirectory, SHARD_PREFIX + HEX[hash & 0xf] + File.separator
+				+ HEX[(hash >>> 4) & 0xf]);
+		return new File(shard, Long.toString(id));
+	}
+
+	/**
+	 * Move a file of the flat layout into its shard, unless it was left
+	 * truncated by a write that did not finish.
+	 */
+	private static boolean migrate(File flat, File target) {
+		if (isComplete(flat) == false) {
+			Log.w(TAG, "dropping incomplete " + flat);
+			flat.delete();
+			return false;
+		}
+		move(flat, target);
+		return true;
+	}
+
+	private static void move(File from, File to) {
+		File parent = to.getParentFile();
+		if (parent.exists() == false)
+			parent.mkdirs();
+		if (from.renameTo(to) == false) {
+			Log.w(TAG, "can't move " + from + " to " + to);
+		}
+	}
+
+	/**
+	 * The file of {@code id} was (re)written.
+	 */
+	public void recordWrite(long id) {
+		long length = getFile(id).length();
+		synchronized (this) {
+			Long previous = mEntries.put(id, length);
+			mSize += length - (previous != null ? previous : 0);
+		}
+		scheduleTrim();
+	}
+
+	/**
+	 * The file of {@code id} was read, it becomes the most recently used.
+	 */
+	public synchronized void recordAccess(long id) {
+		mEntries.get(id);
+	}
+
+	/**
+	 * Delete the file of {@code id}, if any, and forget it.
+	 *
+	 * @return bytes freed
+	 */
+	public long remove(long id) {
+		synchronized (this) {
+			Long length = mEntries.remove(id);
+			if (length != null) {
+				mSize -= length;
+			}
+		}
+		File file = getFile(id);
+		long length = file.length();
+		return file.delete() ? length : 0;
+	}
+
+	/**
+	 * @param shard
+	 *            0 to {@link #SHARD_COUNT} - 1
+	 * @return ids of the files in one of the subdirectories, for scans that
+	 *         go over the directory a piece at a time
+	 */
+	public long[] listShard(int shard) {
+		File dir = new File(mDirectory, SHARD_PREFIX + HEX[shard & 0xf] + File.separator
+				+ HEX[(shard >>> 4) & 0xf]);
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new long[0];
+		long[] ids = new long[files.length];
+		int count = 0;
+		for (File file : files) {
+			long id = parseId(file.getName());
+			if (id >= 0)
+				ids[count++] = id;
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	/**
+	 * Change the budget, evicting in the background if it shrank. 0 removes
+	 * the limit.
+	 */
+	/**
+	 * Stop tracking the directory: nothing is scanned or evicted any more
+	 * and the {@link EvictionListener} is not called again. Files stay where
+	 * they are. Cheap, callable from any thread.
+	 */
+	public void close() {
+		mClosed = true;
+		synchronized (this) {
+			mEntries.clear();
+			mSize = 0;
+		}
+	}
+
+	public void setMaxSize(long maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		mMaxSize = maxSize;
+		scheduleTrim();
+	}
+
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized long size() {
+		return mSize;
+	}
+
+	public synchronized int fileCount() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Delete least recently used files until at most {@code maxSize} bytes
+	 * remain. Blocks on file I/O; call it from a background thread.
+	 */
+	public void trimToSize(long maxSize) {
+		if (maxSize <= 0)
+			return;
+		while (true) {
+			long id;
+			long length;
+			synchronized (this) {
+				if (mClosed || mSize <= maxSize || mEntries.isEmpty())
+					break;
+				Iterator<Map.Entry<Long, Long>> it = mEntries.entrySet().iterator();
+				Map.Entry<Long, Long> eldest = it.next();
+				id = eldest.getKey();
+				length = eldest.getValue();
+				it.remove();
+				mSize -= length;
+			}
+			if (getFile(id).delete() == false && getFile(id).exists()) {
+				Log.w(TAG, "can't delete " + getFile(id));
+			}
+			if (mListener != null && mClosed == false)
+				mListener.onEvicted(id, length);
+		}
+	}
+
+	private void scheduleTrim() {
+		if (mClosed || mMaxSize <= 0 || size() <= mMaxSize)
+			return;
+		if (mTrimScheduled.compareAndSet(false, true)) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mTrimScheduled.set(false);
+					trimToSize(mMaxSize);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Move files of the flat layout into their shards.
+	 */
+	private void migrate() {
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return;
+		int moved = 0;
+		for (File file : files) {
+			long id = parseId(file.getName());
+			if (id >= 0 && file.isFile()) {
+				File target = shardFile(id);
+				if (target.exists()) {
+					// written in the new layout meanwhile
+					file.delete();
+				} else if (migrate(file, target)) {
+					moved++;
+				}
+			}
+		}
+		if (moved > 0)
+			Log.i(TAG, "moved " + moved + " files into shards");
+	}
+
+	/**
+	 * Pick up the files already in the directory, oldest first, ahead of
+	 * anything recorded since the cache was opened.
+	 */
+	private void scan() {
+		migrate();
+		mMigrating = false;
+		ArrayList<File> list = new ArrayList<File>();
+		File[] shards = mDirectory.listFiles();
+		if (shards == null)
+			return;
+		for (File shard : shards) {
+			if (shard.getName().startsWith(SHARD_PREFIX) == false)
+				continue;
+			File[] subShards = shard.listFiles();
+			if (subShards == null)
+				continue;
+			for (File subShard : subShards) {
+				File[] shardFiles = subShard.listFiles();
+				if (shardFiles == null)
+					continue;
+				for (File file : shardFiles) {
+					if (file.getName().endsWith(TMP_SUFFIX)) {
+						// a write the process did not live to commit, unless it
+						// is one started since the cache was opened
+						if (file.lastModified() < mOpenedAt)
+							file.delete();
+					} else {
+						list.add(file);
+					}
+				}
+			}
+		}
+		File[] files = list.toArray(new File[list.size()]);
+		Map<Long, Long> accessTimes = mAccessTimes != null ? mAccessTimes.loadAccessTimes() : null;
+		final long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; ++i) {
+			modified[i] = files[i].lastModified();
+			if (accessTimes != null) {
+				Long accessed = accessTimes.get(parseId(files[i].getName()));
+				if (accessed != null && accessed > modified[i])
+					modified[i] = accessed;
+			}
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long l = modified[lhs], r = modified[rhs];
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		LinkedHashMap<Long, Long> scanned = new LinkedHashMap<Long, Long>(files.length * 2, 0.75f, true);
+		for (Integer i : order) {
+			long id = parseId(files[i].getName());
+			if (id >= 0)
+				scanned.put(id, files[i].length());
+		}
+
+		synchronized (this) {
+			if (mClosed)
+				return;
+			// entries recorded meanwhile are the most recent
+			for (Map.Entry<Long, Long> entry : mEntries.entrySet()) {
+				scanned.remove(entry.getKey());
+				scanned.put(entry.getKey(), entry.getValue());
+			}
+			mEntries.clear();
+			mEntries.putAll(scanned);
+			mSize = 0;
+			for (Long length : mEntries.values()) {
+				mSize += length;
+			}
+		}
+	}
+
+	private static long parseId(String name) {
+		try {
+			return Long.parseLong(name);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("DiskCache[%s,files=%d,size=%d/%d]", mDirectory, mEntries.size(), mSize, mMaxSize);
+	}
+}
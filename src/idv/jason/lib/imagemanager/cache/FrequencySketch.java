@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key was seen
+ * recently. Four counters per key, packed sixteen to a long; once the number
+ * of recorded events reaches ten times the capacity every counter is halved,
+ * so old popularity fades out.
+ *
+ * <p>
+ * The table has a long per expected entry. That window sees many more
+ * distinct keys than the cache holds, and in a narrower table one-off keys
+ * share counters with popular ones and look popular themselves.
+ * </p>
+ *
+ * <p>
+ * Updates are not synchronized. Concurrent increments may be lost, which only
+ * blurs an estimate that is approximate anyway.
+ * </p>
+ */
+public class FrequencySketch {
+	private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] mTable;
+	private final int mCounterMask;
+	private final int mSampleSize;
+	private int mEvents;
+
+	/**
+	 * @param expectedEntries
+	 *            roughly how many distinct entries the cache holds
+	 */
+	public FrequencySketch(int expectedEntries) {
+		int capacity = Math.max(expectedEntries, 16);
+		int longs = 1;
+		while (longs < capacity) {
+			longs <<= 1;
+		}
+		mTable = new long[longs];
+		mCounterMask = longs * 16 - 1;
+		mSampleSize = capacity * 10;
+	}
+
+	public void increment(long hash) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; ++i) {
+			int counter = indexOf(hash, i);
+			int index = counter >>> 4;
+			int shift = (counter & 15) << 2;
+			if (((mTable[index] >>> shift) & 0xfL) < MAX_COUNT) {
+				mTable[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++mEvents >= mSampleSize) {
+			reset();
+		}
+	}
+
+	public int frequency(long hash) {
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < SEEDS.length; ++i) {
+			int counter = indexOf(hash, i);
+			int count = (int) ((mTable[counter >>> 4] >>> ((counter & 15) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	private void reset() {
+		for (int i = 0; i < mTable.length; ++i) {
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+		mEvents = mEvents / 2;
+	}
+
+	private int indexOf(long hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= h >>> 32;
+		return (int) h & mCounterMask;
+	}
+
+	/**
+	 * Spread an {@link Object#hashCode()} over 64 bits.
+	 */
+	public static long spread(int hashCode) {
+		long h = hashCode * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+}
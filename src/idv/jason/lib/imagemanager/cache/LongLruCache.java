@@ -0,0 +1,669 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounded LRU cache keyed by primitive {@code long}, meant for bitmaps
+ * looked up by their database row id. Lookups neither box the key nor
+ * allocate.
+ *
+ * <p>
+ * Keys are spread over lock-striped segments. Each segment is an
+ * open-addressing table with linear probing whose slots are threaded into a
+ * doubly linked LRU list by index. The byte budget is global: eviction
+ * removes the least recently used segment head.
+ * </p>
+ *
+ * <p>
+ * Hits take no lock. Entries are published as immutable nodes in a volatile
+ * table, so a lookup only reads memory. A sample of the hits goes into a
+ * small per-segment ring buffer, and whoever fills the buffer applies them to
+ * the LRU list if the segment lock is free; writes and eviction apply the
+ * pending hits first. Recency is therefore approximate: an entry used once
+ * may not be sampled and is evicted as if it had not been used, while an
+ * entry used all the time is sampled often enough to stay.
+ * The {@link MemoryCache} methods taking a boxed {@link Long} are there for
+ * code written against the interface.
+ * </p>
+ */
+public class LongLruCache<V> implements MemoryCache<Long, V> {
+	private static final int DEFAULT_CONCURRENCY = 8;
+	private static final int INITIAL_CAPACITY = 16;
+	// hits a segment buffers before someone applies them to its LRU list
+	private static final int READ_BUFFER_SIZE = 16;
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	// one hit in this many is buffered, popular entries get sampled anyway
+	private static final int READ_SAMPLE_MASK = 8 - 1;
+
+	private final Segment<V>[] mSegments;
+	private final int mSegmentMask;
+	private final ReentrantLock mEvictionLock = new ReentrantLock();
+
+	private final AtomicInteger mSize = new AtomicInteger();
+	private volatile int mMaxSize;
+
+	private final AtomicInteger mPutCount = new AtomicInteger();
+	private final AtomicInteger mEvictionCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+	private final AtomicInteger mRejectCount = new AtomicInteger();
+
+	private volatile AdmissionPolicy mAdmissionPolicy;
+
+	public LongLruCache(int maxSize) {
+		this(maxSize, DEFAULT_CONCURRENCY);
+	}
+
+	@SuppressWarnings("unchecked")
+	public LongLruCache(int maxSize, int concurrencyLevel) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		int segments = 1;
+		while (segments < concurrencyLevel) {
+			segments <<= 1;
+		}
+		mMaxSize = maxSize;
+		mSegments = new Segment[segments];
+		for (int i = 0; i < segments; ++i) {
+			mSegments[i] = new Segment<V>();
+		}
+		mSegmentMask = segments - 1;
+	}
+
+	public final V get(long key) {
+		long hash = mix(key);
+		AdmissionPolicy policy = mAdmissionPolicy;
+		if (policy != null) {
+			policy.record(hash);
+		}
+		Segment<V> segment = segmentFor(hash);
+		V value = segment.lookup(key, hash);
+		if (value != null) {
+			if (segment.sampleRead() && segment.recordRead(key) && segment.lock.tryLock()) {
+				try {
+					segment.drainReads();
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+		} else {
+			// a removal may have been moving the entry, make sure
+			segment.lock.lock();
+			try {
+				value = segment.get(key, hash);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		if (value != null) {
+			segment.hitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+		return value;
+	}
+
+	public final V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("value == null");
+		}
+		long hash = mix(key);
+		int size = safeSizeOf(key, value);
+		Segment<V> segment = segmentFor(hash);
+		AdmissionPolicy policy = mAdmissionPolicy;
+		// the lookup that missed already recorded the request
+		if (policy != null) {
+			if (mSize.get() + size > mMaxSize && containsKey(segment, key, hash) == false) {
+				long[] victim = new long[2];
+				if (peekOldest(victim, null) && policy.admit(hash, mix(victim[0])) == false) {
+					mRejectCount.incrementAndGet();
+					return null;
+				}
+			}
+		}
+
+		V previous;
+		segment.lock.lock();
+		try {
+			segment.drainReads();
+			mPutCount.incrementAndGet();
+			int previousSize = segment.sizeOf(key, hash);
+			previous = segment.put(key, hash, value, size);
+			mSize.addAndGet(size - (previous != null ? previousSize : 0));
+		} finally {
+			segment.lock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, value);
+		}
+		trimToSize(mMaxSize);
+		return previous;
+	}
+
+	public final V remove(long key) {
+		long hash = mix(key);
+		Segment<V> segment = segmentFor(hash);
+		V previous;
+		segment.lock.lock();
+		try {
+			int slot = segment.find(key, hash);
+			if (slot < 0) {
+				return null;
+			}
+			previous = segment.values(slot);
+			mSize.addAndGet(-segment.sizes[slot]);
+			segment.delete(slot);
+		} finally {
+			segment.lock.unlock();
+		}
+		entryRemoved(false, key, previous, null);
+		return previous;
+	}
+
+	@Override
+	public final V get(Long key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		return get(key.longValue());
+	}
+
+	@Override
+	public final V put(Long key, V value) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		return put(key.longValue(), value);
+	}
+
+	@Override
+	public final V remove(Long key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		return remove(key.longValue());
+	}
+
+	@Override
+	public final void setMaxSize(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum size of the cache before returning. May be -1 to
+	 *            evict even 0-sized elements.
+	 */
+	@Override
+	public final void trimToSize(int maxSize) {
+		long[] victim = new long[2];
+		while (true) {
+			Object value;
+			mEvictionLock.lock();
+			try {
+				if (mSize.get() <= maxSize) {
+					break;
+				}
+				value = evictOldest(victim);
+				if (value == null) {
+					break;
+				}
+			} finally {
+				mEvictionLock.unlock();
+			}
+			@SuppressWarnings("unchecked")
+			V evicted = (V) value;
+			entryRemoved(true, victim[0], evicted, null);
+		}
+	}
+
+	@Override
+	public final void evictAll() {
+		trimToSize(-1); // -1 will evict 0-sized elements
+	}
+
+	@Override
+	public final void setAdmissionPolicy(AdmissionPolicy policy) {
+		mAdmissionPolicy = policy;
+	}
+
+	/**
+	 * Called for entries that have been evicted or removed, without any lock
+	 * held. See {@link idv.jason.lib.imagemanager.LruCache#entryRemoved}.
+	 */
+	protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+	}
+
+	/**
+	 * Returns the size of the entry in user-defined units. The default
+	 * implementation returns 1. An entry's size must not change while it is in
+	 * the cache.
+	 */
+	protected int sizeOf(long key, V value) {
+		return 1;
+	}
+
+	private int safeSizeOf(long key, V value) {
+		int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return result;
+	}
+
+	private boolean containsKey(Segment<V> segment, long key, long hash) {
+		segment.lock.lock();
+		try {
+			return segment.find(key, hash) >= 0;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Find the least recently used segment head.
+	 *
+	 * @param victim
+	 *            receives the key and access time of the entry
+	 * @param segmentOut
+	 *            if not null, receives the segment holding the entry
+	 * @return false if the cache is empty
+	 */
+	private boolean peekOldest(long[] victim, Segment<V>[] segmentOut) {
+		boolean found = false;
+		for (Segment<V> segment : mSegments) {
+			segment.lock.lock();
+			try {
+				segment.drainReads();
+				int head = segment.head;
+				if (head >= 0 && (found == false || segment.times[head] < victim[1])) {
+					victim[0] = segment.keys(head);
+					victim[1] = segment.times[head];
+					found = true;
+					if (segmentOut != null)
+						segmentOut[0] = segment;
+				}
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Remove the least recently used segment head. Called with the eviction
+	 * lock held.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object evictOldest(long[] victim) {
+		Segment<V>[] holder = new Segment[1];
+		while (peekOldest(victim, holder)) {
+			Segment<V> segment = holder[0];
+			segment.lock.lock();
+			try {
+				int head = segment.head;
+				// still the same entry, or lost a race and look again
+				if (head >= 0 && segment.keys(head) == victim[0] && segment.times[head] == victim[1]) {
+					Object value = segment.values(head);
+					mSize.addAndGet(-segment.sizes[head]);
+					segment.delete(head);
+					mEvictionCount.incrementAndGet();
+					return value;
+				}
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return null;
+	}
+
+	private Segment<V> segmentFor(long hash) {
+		return mSegments[(int) (hash >>> 32) & mSegmentMask];
+	}
+
+	/**
+	 * 64-bit finalizer of MurmurHash3.
+	 */
+	static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	@Override
+	public final int size() {
+		return mSize.get();
+	}
+
+	@Override
+	public final int maxSize() {
+		return mMaxSize;
+	}
+
+	@Override
+	public final int hitCount() {
+		int count = 0;
+		for (Segment<V> segment : mSegments) {
+			count += segment.hitCount.get();
+		}
+		return count;
+	}
+
+	@Override
+	public final int missCount() {
+		return mMissCount.get();
+	}
+
+	@Override
+	public final int putCount() {
+		return mPutCount.get();
+	}
+
+	@Override
+	public final int evictionCount() {
+		return mEvictionCount.get();
+	}
+
+	@Override
+	public final int rejectCount() {
+		return mRejectCount.get();
+	}
+
+	@Override
+	public final String toString() {
+		int hits = hitCount();
+		int accesses = hits + mMissCount.get();
+		int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+		return String.format("LongLruCache[maxSize=%d,size=%d,hits=%d,misses=%d,puts=%d,hitRate=%d%%]", mMaxSize,
+				mSize.get(), hits, mMissCount.get(), mPutCount.get(), hitPercent);
+	}
+
+	/**
+	 * An entry as lookups without the lock see it: key and value always
+	 * belong together.
+	 */
+	private static final class Node<V> {
+		final long key;
+		final V value;
+
+		Node(long key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * One open-addressing table. {@link #lookup} runs without the lock and
+	 * only reads {@link #table}; every other method is called with
+	 * {@link #lock} held.
+	 */
+	private static final class Segment<V> {
+		final ReentrantLock lock = new ReentrantLock();
+		// replaced, never resized in place, so a lookup always sees one
+		// consistent array
+		volatile AtomicReferenceArray<Node<V>> table;
+		int[] sizes;
+		long[] times;
+		int[] prev;
+		int[] next;
+		int mask;
+		int count;
+		// least and most recently used slots, -1 when empty
+		int head = -1;
+		int tail = -1;
+
+		// keys of recent hits, overwritten when nobody drains them in time
+		final AtomicLongArray reads = new AtomicLongArray(READ_BUFFER_SIZE);
+		final AtomicInteger readCount = new AtomicInteger();
+		int drainedCount;
+		// racy on purpose, a lost increment only shifts the sample
+		int sampleCount;
+		// per segment so hits on different segments do not share a counter
+		final AtomicInteger hitCount = new AtomicInteger();
+
+		Segment() {
+			allocate(INITIAL_CAPACITY);
+		}
+
+		private void allocate(int capacity) {
+			table = new AtomicReferenceArray<Node<V>>(capacity);
+			sizes = new int[capacity];
+			times = new long[capacity];
+			prev = new int[capacity];
+			next = new int[capacity];
+			mask = capacity - 1;
+			count = 0;
+			head = tail = -1;
+		}
+
+		/**
+		 * @return the value, or null if it is missing or was being moved by
+		 *         a removal in this segment; look again with the lock then
+		 */
+		V lookup(long key, long hash) {
+			AtomicReferenceArray<Node<V>> nodes = table;
+			int mask = nodes.length() - 1;
+			int i = (int) hash & mask;
+			for (int probes = 0; probes <= mask; ++probes) {
+				Node<V> node = nodes.get(i);
+				if (node == null)
+					return null;
+				if (node.key == key)
+					return node.value;
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		boolean sampleRead() {
+			return (++sampleCount & READ_SAMPLE_MASK) == 0;
+		}
+
+		/**
+		 * Note a hit found by {@link #lookup}; it is applied to the LRU list
+		 * when the buffer is drained.
+		 *
+		 * @return true once the buffer is full and worth draining
+		 */
+		boolean recordRead(long key) {
+			int n = readCount.getAndIncrement();
+			reads.set(n & READ_BUFFER_MASK, key);
+			return (n & READ_BUFFER_MASK) == READ_BUFFER_MASK;
+		}
+
+		/**
+		 * Move the entries of buffered hits to the most recently used end.
+		 */
+		void drainReads() {
+			int end = readCount.get();
+			int pending = end - drainedCount;
+			if (pending == 0)
+				return;
+			if (pending < 0 || pending > READ_BUFFER_SIZE)
+				pending = READ_BUFFER_SIZE;
+			for (int n = end - pending; n != end; ++n) {
+				long key = reads.get(n & READ_BUFFER_MASK);
+				int slot = find(key, mix(key));
+				if (slot >= 0)
+					touch(slot);
+			}
+			drainedCount = end;
+		}
+
+		int find(long key, long hash) {
+			int i = (int) hash & mask;
+			Node<V> node;
+			while ((node = table.get(i)) != null) {
+				if (node.key == key)
+					return i;
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		long keys(int slot) {
+			return table.get(slot).key;
+		}
+
+		V values(int slot) {
+			return table.get(slot).value;
+		}
+
+		V get(long key, long hash) {
+			int slot = find(key, hash);
+			if (slot < 0)
+				return null;
+			touch(slot);
+			return values(slot);
+		}
+
+		int sizeOf(long key, long hash) {
+			int slot = find(key, hash);
+			return slot < 0 ? 0 : sizes[slot];
+		}
+
+		V put(long key, long hash, V value, int size) {
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				V previous = values(slot);
+				table.set(slot, new Node<V>(key, value));
+				sizes[slot] = size;
+				touch(slot);
+				return previous;
+			}
+			if ((count + 1) * 4 > table.length() * 3) {
+				resize();
+			}
+			slot = (int) hash & mask;
+			while (table.get(slot) != null) {
+				slot = (slot + 1) & mask;
+			}
+			sizes[slot] = size;
+			table.set(slot, new Node<V>(key, value));
+			count++;
+			linkLast(slot);
+			times[slot] = System.nanoTime();
+			return null;
+		}
+
+		/**
+		 * Remove a slot, shifting later entries of the probe sequence back so
+		 * lookups never stop at the hole.
+		 */
+		void delete(int slot) {
+			unlink(slot);
+			table.set(slot, null);
+			count--;
+			int hole = slot;
+			int i = slot;
+			while (true) {
+				i = (i + 1) & mask;
+				Node<V> node = table.get(i);
+				if (node == null)
+					break;
+				int home = (int) mix(node.key) & mask;
+				// the entry may stay if its home lies cyclically in (hole, i]
+				boolean stays = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+				if (stays)
+					continue;
+				move(i, hole);
+				hole = i;
+			}
+		}
+
+		private void move(int from, int to) {
+			sizes[to] = sizes[from];
+			times[to] = times[from];
+			prev[to] = prev[from];
+			next[to] = next[from];
+			if (prev[to] >= 0)
+				next[prev[to]] = to;
+			else
+				head = to;
+			if (next[to] >= 0)
+				prev[next[to]] = to;
+			else
+				tail = to;
+			table.set(to, table.get(from));
+			table.set(from, null);
+		}
+
+		private void touch(int slot) {
+			times[slot] = System.nanoTime();
+			if (slot != tail) {
+				unlink(slot);
+				linkLast(slot);
+			}
+		}
+
+		private void linkLast(int slot) {
+			prev[slot] = tail;
+			next[slot] = -1;
+			if (tail >= 0)
+				next[tail] = slot;
+			else
+				head = slot;
+			tail = slot;
+		}
+
+		private void unlink(int slot) {
+			if (prev[slot] >= 0)
+				next[prev[slot]] = next[slot];
+			else
+				head = next[slot];
+			if (next[slot] >= 0)
+				prev[next[slot]] = prev[slot];
+			else
+				tail = prev[slot];
+		}
+
+		private void resize() {
+			AtomicReferenceArray<Node<V>> oldTable = table;
+			int[] oldSizes = sizes;
+			long[] oldTimes = times;
+			int[] oldNext = next;
+			int oldHead = head;
+			int capacity = oldTable.length() * 2;
+			// filled before it is published, lookups keep using the old one
+			AtomicReferenceArray<Node<V>> nodes = new AtomicReferenceArray<Node<V>>(capacity);
+			sizes = new int[capacity];
+			times = new long[capacity];
+			prev = new int[capacity];
+			next = new int[capacity];
+			mask = capacity - 1;
+			count = 0;
+			head = tail = -1;
+			// re-insert in LRU order so the list keeps its order
+			for (int i = oldHead; i >= 0; i = oldNext[i]) {
+				Node<V> node = oldTable.get(i);
+				int slot = (int) mix(node.key) & mask;
+				while (nodes.get(slot) != null) {
+					slot = (slot + 1) & mask;
+				}
+				nodes.set(slot, node);
+				sizes[slot] = oldSizes[i];
+				times[slot] = oldTimes[i];
+				count++;
+				linkLast(slot);
+			}
+			table = nodes;
+		}
+	}
+}
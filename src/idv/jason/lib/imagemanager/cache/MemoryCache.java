@@ -0,0 +1,55 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+/**
+ * Common surface of the size-bounded memory caches, so {@code ImageManager}
+ * can switch implementations without touching its call sites.
+ */
+public interface MemoryCache<K, V> {
+	public V get(K key);
+
+	public V put(K key, V value);
+
+	public V remove(K key);
+
+	/**
+	 * Change the capacity; shrinking evicts least recently used entries.
+	 */
+	public void setMaxSize(int maxSize);
+
+	/**
+	 * Evict least recently used entries until the size is at most
+	 * {@code maxSize}, leaving the capacity untouched.
+	 */
+	public void trimToSize(int maxSize);
+
+	public void evictAll();
+
+	/**
+	 * Put an admission filter in front of inserts of new keys into a full
+	 * cache, or null to admit everything.
+	 */
+	public void setAdmissionPolicy(AdmissionPolicy policy);
+
+	public int size();
+
+	public int maxSize();
+
+	public int hitCount();
+
+	public int missCount();
+
+	public int putCount();
+
+	public int evictionCount();
+
+	/**
+	 * Returns the number of puts turned away by the admission policy.
+	 */
+	public int rejectCount();
+}
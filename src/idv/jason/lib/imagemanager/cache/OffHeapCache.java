@@ -0,0 +1,240 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+
+/**
+ * Byte-bounded tier of raw pixel copies in direct {@link ByteBuffer}s, keyed
+ * by database row id. It sits behind the memory cache: bitmaps evicted from
+ * there are copied in with {@link Bitmap#copyPixelsToBuffer}, and a hit costs
+ * a bitmap allocation and a memcpy instead of opening and decoding the file.
+ * Direct buffers live outside the Java heap, so this tier does not compete
+ * with the memory cache for it. A max size of 0 disables the tier.
+ *
+ * <p>
+ * Buffers of dropped entries are kept on a small free list and reused for
+ * copies that fit, since allocating direct memory is slow.
+ * </p>
+ */
+public class OffHeapCache {
+	// share of the budget that may sit on the free list
+	private static final int FREE_LIST_DIVISOR = 8;
+
+	private final LongLruCache<Entry> mEntries;
+	private final ArrayList<ByteBuffer> mFree = new ArrayList<ByteBuffer>();
+	private int mFreeSize;
+	private volatile int mMaxSize;
+
+	private final AtomicInteger mHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	public OffHeapCache(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		mMaxSize = maxSize;
+		mEntries = new LongLruCache<Entry>(Math.max(1, maxSize)) {
+			@Override
+			protected int sizeOf(long key, Entry value) {
+				return value.buffer.capacity();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, long key, Entry oldValue, Entry newValue) {
+				if (evicted || newValue != null) {
+					release(oldValue.buffer);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Copy the pixels of a bitmap the memory cache let go.
+	 *
+	 * @return false if the tier is disabled or can not hold the bitmap
+	 */
+	public boolean put(long id, Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null) {
+			return false;
+		}
+		int size = bitmap.getRowBytes() * bitmap.getHeight();
+		if (size <= 0 || size > mMaxSize) {
+			return false;
+		}
+		ByteBuffer buffer = obtain(size);
+		bitmap.copyPixelsToBuffer(buffer);
+		buffer.flip();
+		mEntries.put(id, new Entry(buffer, size, bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+		return true;
+	}
+
+	/**
+	 * Remove the entry of {@code id} and turn it back into a bitmap.
+	 *
+	 * @param pool
+	 *            where to look for a bitmap of the entry's size to copy into,
+	 *            may be null
+	 */
+	public Bitmap take(long id, BitmapPool pool) {
+		Entry entry = mEntries.remove(id);
+		if (entry == null) {
+			mMissCount.incrementAndGet();
+			return null;
+		}
+		// every pixel gets overwritten, no need to erase a pooled bitmap
+		Bitmap bitmap = pool != null ? pool.getDirty(entry.width, entry.height, entry.config) : null;
+		if (bitmap == null) {
+			bitmap = Bitmap.createBitmap(entry.width, entry.height, entry.config);
+		}
+		entry.buffer.clear();
+		entry.buffer.limit(entry.length);
+		bitmap.copyPixelsFromBuffer(entry.buffer);
+		release(entry.buffer);
+		mHitCount.incrementAndGet();
+		return bitmap;
+	}
+
+	public void remove(long id) {
+		Entry entry = mEntries.remove(id);
+		if (entry != null) {
+			release(entry.buffer);
+		}
+	}
+
+	public void setMaxSize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		mMaxSize = maxSize;
+		if (maxSize == 0) {
+			evictAll();
+		} else {
+			mEntries.setMaxSize(maxSize);
+		}
+		synchronized (mFree) {
+			trimFreeLocked(maxSize / FREE_LIST_DIVISOR);
+		}
+	}
+
+	/**
+	 * Evict down to {@code maxSize} and drop the free list, whose buffers
+	 * would otherwise keep the evicted native memory.
+	 */
+	public void trimToSize(int maxSize) {
+		mEntries.trimToSize(maxSize);
+		synchronized (mFree) {
+			trimFreeLocked(0);
+		}
+	}
+
+	public void evictAll() {
+		mEntries.evictAll();
+		synchronized (mFree) {
+			trimFreeLocked(0);
+		}
+	}
+
+	public boolean isEnabled() {
+		return mMaxSize > 0;
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	public int maxSize() {
+		return mMaxSize;
+	}
+
+	public int hitCount() {
+		return mHitCount.get();
+	}
+
+	public int missCount() {
+		return mMissCount.get();
+	}
+
+	public int putCount() {
+		return mEntries.putCount();
+	}
+
+	public int evictionCount() {
+		return mEntries.evictionCount();
+	}
+
+	@Override
+	public String toString() {
+		int hits = mHitCount.get();
+		int accesses = hits + mMissCount.get();
+		int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+		return String.format("OffHeapCache[maxSize=%d,size=%d,free=%d,hits=%d,misses=%d,hitRate=%d%%]", mMaxSize,
+				mEntries.size(), mFreeSize, hits, mMissCount.get(), hitPercent);
+	}
+
+	/**
+	 * @return a cleared buffer limited to {@code size} bytes, reused from the
+	 *         free list when one is at most a quarter larger. The whole
+	 *         buffer goes back to the free list, not a slice, so its
+	 *         capacity is not lost on each reuse.
+	 */
+	private ByteBuffer obtain(int size) {
+		synchronized (mFree) {
+			for (int i = 0; i < mFree.size(); ++i) {
+				ByteBuffer buffer = mFree.get(i);
+				if (buffer.capacity() >= size && buffer.capacity() <= size + size / 4) {
+					mFree.remove(i);
+					mFreeSize -= buffer.capacity();
+					buffer.clear();
+					buffer.limit(size);
+					return buffer;
+				}
+			}
+		}
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	private void release(ByteBuffer buffer) {
+		synchronized (mFree) {
+			int limit = mMaxSize / FREE_LIST_DIVISOR;
+			if (buffer.capacity() > limit) {
+				return;
+			}
+			mFree.add(buffer);
+			mFreeSize += buffer.capacity();
+			trimFreeLocked(limit);
+		}
+	}
+
+	private void trimFreeLocked(int maxSize) {
+		while (mFreeSize > maxSize && mFree.isEmpty() == false) {
+			// oldest first, the garbage collector frees the direct memory
+			mFreeSize -= mFree.remove(0).capacity();
+		}
+	}
+
+	private static final class Entry {
+		final ByteBuffer buffer;
+		// bytes of pixels, the buffer may be larger
+		final int length;
+		final int width;
+		final int height;
+		final Bitmap.Config config;
+
+		Entry(ByteBuffer buffer, int length, int width, int height, Bitmap.Config config) {
+			this.buffer = buffer;
+			this.length = length;
+			this.width = width;
+			this.height = height;
+			this.config = config;
+		}
+	}
+}
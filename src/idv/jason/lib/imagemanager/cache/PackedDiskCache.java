@@ -0,0 +1,717 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Byte-bounded store of small cache entries packed into a few large segment
+ * files, keyed by database row id. Reading an entry is a lookup in memory
+ * and a copy out of a {@link MappedByteBuffer}, instead of opening, reading
+ * and closing a file of its own as {@link DiskCache} does.
+ *
+ * <p>
+ * Entries are appended to the newest segment, each record being a header of
+ * magic, id, length and CRC32 followed by the data; a removal appends a
+ * record without data. Segments are scanned when the store is opened, a
+ * record that runs past the end of its segment was torn by a crash and is cut
+ * off, and a record failing its CRC is dropped when read. Once half of an
+ * older segment is superseded or removed data, its live records are copied
+ * to the newest segment and it is deleted.
+ * </p>
+ *
+ * <p>
+ * Segments are scanned on the executor, behind whatever is queued there.
+ * Until then nothing blocks: lookups miss, {@link #put} declines so the
+ * entry goes to a file, and removals are applied once the scan is done.
+ * </p>
+ *
+ * <p>
+ * Eviction is least recently used, with recency seeded from the persisted
+ * access times like {@link DiskCache}. Entries whose id the access times do
+ * not know are dropped on open, with a removal record, since their database
+ * row is gone and its id may be handed out again. Removals are synced before the
+ * {@link DiskCache.EvictionListener} hears of them for the same reason.
+ * </p>
+ */
+public class PackedDiskCache {
+	private static final String TAG = PackedDiskCache.class.getSimpleName();
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int MAGIC = 0x494d5042;
+	// magic, id, length, crc
+	private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+	private static final int REMOVED = -1;
+
+	private final File mDirectory;
+	private final int mSegmentSize;
+	private final Executor mExecutor;
+	private final DiskCache.AccessTimeSource mAccessTimes;
+	private final DiskCache.EvictionListener mListener;
+
+	// id -> location, least recently used first
+	private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>();
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+	private Segment mActive;
+	private long mSize;
+	private boolean mClosed;
+	// false until the segments were read; callers get misses meanwhile
+	// instead of waiting for the cache thread
+	private volatile boolean mLoaded;
+	// removals asked for before that, applied by the load
+	private final ArrayList<Long> mPendingRemovals = new ArrayList<Long>();
+	private volatile long mMaxSize;
+
+	private final AtomicBoolean mMaintenanceScheduled = new AtomicBoolean();
+
+	private final AtomicInteger mHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+	private final AtomicInteger mPutCount = new AtomicInteger();
+	private final AtomicInteger mEvictionCount = new AtomicInteger();
+
+	/**
+	 * @param maxSize
+	 *            budget of live entry bytes, 0 for no limit
+	 * @param accessTimes
+	 *            may be null to go by write order only, nothing is then
+	 *            dropped as unknown on open
+	 */
+	public PackedDiskCache(File directory, long maxSize, int segmentSize, Executor executor,
+			DiskCache.AccessTimeSource accessTimes, DiskCache.EvictionListener listener) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("segmentSize <= " + HEADER_SIZE);
+		}
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		mSegmentSize = segmentSize;
+		mExecutor = executor;
+		mAccessTimes = accessTimes;
+		mListener = listener;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				load();
+				maintain();
+			}
+		});
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return the largest entry {@link #put} accepts
+	 */
+	public int maxEntrySize() {
+		return mSegmentSize - HEADER_SIZE;
+	}
+
+	/**
+	 * Store {@code data} as the entry of {@code id}, replacing any previous
+	 * one.
+	 *
+	 * @return false if it is too large or could not be written
+	 */
+	public boolean put(long id, byte[] data) {
+		if (data.length == 0 || data.length > maxEntrySize() || mLoaded == false)
+			return false;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		synchronized (this) {
+			if (mClosed)
+				return false;
+			try {
+				Entry entry = append(id, data, 0, data.length, (int) crc.getValue());
+				Entry previous = mEntries.remove(id);
+				if (previous != null) {
+					mSize -= previous.length;
+					bury(previous);
+				}
+				mEntries.put(id, entry);
+				mSize += data.length;
+			} catch (IOException e) {
+				Log.e(TAG, "can't write entry " + id, e);
+				return false;
+			}
+		}
+		mPutCount.incrementAndGet();
+		scheduleMaintenance();
+		return true;
+	}
+
+	/**
+	 * @return a copy of the entry of {@code id}, which becomes the most
+	 *         recently used, or null
+	 */
+	public byte[] get(long id) {
+		Entry entry;
+		ByteBuffer mapped;
+		synchronized (this) {
+			entry = mEntries.remove(id);
+			if (entry == null) {
+				mMissCount.incrementAndGet();
+				return null;
+			}
+			mEntries.put(id, entry);
+			try {
+				// mapped under the lock, the buffer stays valid after a
+				// compaction deleted its segment
+				mapped = entry.segment.map(entry.offset + HEADER_SIZE + entry.length);
+			} catch (IOException e) {
+				Log.e(TAG, "can't map " + entry.segment.file, e);
+				mMissCount.incrementAndGet();
+				return null;
+			}
+		}
+		byte[] data = new byte[entry.length];
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position((int) entry.offset + HEADER_SIZE);
+		buffer.get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		if ((int) crc.getValue() != entry.crc) {
+			Log.w(TAG, "dropping corrupt entry " + id + " in " + entry.segment.file);
+			remove(id);
+			mMissCount.incrementAndGet();
+			return null;
+		}
+		mHitCount.incrementAndGet();
+		return data;
+	}
+
+	/**
+	 * The entry of {@code id} was used without being read, it becomes the
+	 * most recently used.
+	 */
+	public void recordAccess(long id) {
+		synchronized (this) {
+			Entry entry = mEntries.remove(id);
+			if (entry != null)
+				mEntries.put(id, entry);
+		}
+	}
+
+	/**
+	 * @return whether the segments were read; until then {@link #contains}
+	 *         is false for every entry
+	 */
+	public boolean isLoaded() {
+		return mLoaded;
+	}
+
+	public boolean contains(long id) {
+		synchronized (this) {
+			return mEntries.containsKey(id);
+		}
+	}
+
+	/**
+	 * Forget the entry of {@code id}, if any. A removal record is written
+	 * even if there is none in memory, in case an older record of the id is
+	 * still on disk; it is synced before this returns when an entry was
+	 * removed.
+	 *
+	 * @return bytes of the entry, 0 if there was none
+	 */
+	public long remove(long id) {
+		int length = 0;
+		synchronized (this) {
+			if (mClosed)
+				return 0;
+			if (mLoaded == false) {
+				mPendingRemovals.add(id);
+				return 0;
+			}
+			Entry entry = mEntries.remove(id);
+			if (entry != null) {
+				length = entry.length;
+				mSize -= entry.length;
+				bury(entry);
+			}
+			try {
+				append(id, null, 0, REMOVED, 0);
+				if (entry != null)
+					mActive.channel.force(false);
+			} catch (IOException e) {
+				Log.e(TAG, "can't record removal of " + id, e);
+			}
+		}
+		if (length > 0)
+			scheduleMaintenance();
+		return length;
+	}
+
+	/**
+	 * Close the segment files; entries stay on disk for the next instance
+	 * over the directory. Afterwards lookups miss and nothing is written.
+	 * Call it on the executor given to the constructor, behind the work
+	 * already queued there.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (mClosed)
+				return;
+			mClosed = true;
+			for (Segment segment : mSegments.values()) {
+				segment.close();
+			}
+			mSegments.clear();
+			mEntries.clear();
+			mActive = null;
+			mSize = 0;
+			mPendingRemovals.clear();
+		}
+	}
+
+	/**
+	 * Change the budget, evicting in the background if it shrank. 0 removes
+	 * the limit.
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		mMaxSize = maxSize;
+		scheduleMaintenance();
+	}
+
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return bytes of live entries, not counting headers and dead space
+	 */
+	public synchronized long size() {
+		return mSize;
+	}
+
+	/**
+	 * @return bytes the segment files take
+	 */
+	public synchronized long fileSize() {
+		long size = 0;
+		for (Segment segment : mSegments.values()) {
+			size += segment.length;
+		}
+		return size;
+	}
+
+	public synchronized int entryCount() {
+		return mEntries.size();
+	}
+
+	public synchronized int segmentCount() {
+		return mSegments.size();
+	}
+
+	public int hitCount() {
+		return mHitCount.get();
+	}
+
+	public int missCount() {
+		return mMissCount.get();
+	}
+
+	public int putCount() {
+		return mPutCount.get();
+	}
+
+	public int evictionCount() {
+		return mEvictionCount.get();
+	}
+
+	/**
+	 * Remove least recently used entries until at most {@code maxSize}
+	 * bytes remain. Blocks on file I/O; call it from a background thread.
+	 */
+	public void trimToSize(long maxSize) {
+		if (maxSize <= 0)
+			return;
+		ArrayList<Long> evicted = new ArrayList<Long>();
+		ArrayList<Integer> lengths = new ArrayList<Integer>();
+		synchronized (this) {
+			Iterator<Map.Entry<Long, Entry>> it = mEntries.entrySet().iterator();
+			try {
+				while (mSize > maxSize && it.hasNext()) {
+					Map.Entry<Long, Entry> eldest = it.next();
+					append(eldest.getKey(), null, 0, REMOVED, 0);
+					it.remove();
+					Entry entry = eldest.getValue();
+					mSize -= entry.length;
+					bury(entry);
+					evicted.add(eldest.getKey());
+					lengths.add(entry.length);
+				}
+				if (evicted.isEmpty() == false)
+					mActive.channel.force(false);
+			} catch (IOException e) {
+				// what was removed in memory but not on disk comes back on
+				// the next open, then dropped as unknown unless its id was
+				// handed out again
+				Log.e(TAG, "can't record evictions", e);
+			}
+		}
+		for (int i = 0; i < evicted.size(); ++i) {
+			mEvictionCount.incrementAndGet();
+			if (mListener != null)
+				mListener.onEvicted(evicted.get(i), lengths.get(i));
+		}
+	}
+
+	/**
+	 * Copy the live records out of every older segment that is at least half
+	 * dead, and delete it. Blocks on file I/O; call it from a background
+	 * thread.
+	 */
+	public void compact() {
+		while (true) {
+			Segment segment = null;
+			boolean oldest = false;
+			synchronized (this) {
+				for (Segment candidate : mSegments.values()) {
+					if (candidate != mActive && candidate.dead * 2 >= candidate.length) {
+						segment = candidate;
+						oldest = candidate == mSegments.firstEntry().getValue();
+						break;
+					}
+				}
+			}
+			if (segment == null)
+				return;
+			try {
+				compact(segment, oldest);
+			} catch (IOException e) {
+				Log.e(TAG, "can't compact " + segment.file, e);
+				return;
+			}
+		}
+	}
+
+	private void compact(Segment segment, boolean oldest) throws IOException {
+		MappedByteBuffer mapped;
+		synchronized (this) {
+			mapped = segment.map(segment.length);
+		}
+		ByteBuffer buffer = mapped.duplicate();
+		int moved = 0;
+		long offset = 0;
+		while (offset + HEADER_SIZE <= buffer.limit()) {
+			buffer.position((int) offset);
+			buffer.getInt(); // magic, checked by the scan
+			long id = buffer.getLong();
+			int length = buffer.getInt();
+			int crc = buffer.getInt();
+			synchronized (this) {
+				Entry entry = mEntries.get(id);
+				if (length == REMOVED) {
+					// still hides a record in an older segment, unless the
+					// id was written again since
+					if (oldest == false && entry == null)
+						append(id, null, 0, REMOVED, 0);
+				} else if (entry != null && entry.segment == segment && entry.offset == offset) {
+					byte[] data = new byte[length];
+					buffer.position((int) offset + HEADER_SIZE);
+					buffer.get(data);
+					Entry copy = append(id, data, 0, length, crc);
+					entry.segment = copy.segment;
+					entry.offset = copy.offset;
+					moved++;
+				}
+			}
+			offset += HEADER_SIZE + Math.max(0, length);
+		}
+		synchronized (this) {
+			if (mClosed)
+				return;
+			mActive.channel.force(false);
+			mSegments.remove(segment.number);
+			segment.close();
+		}
+		if (segment.file.delete() == false) {
+			Log.w(TAG, "can't delete " + segment.file);
+		}
+		Log.i(TAG, "compacted " + segment.file + ", " + moved + " entries moved");
+	}
+
+	private void scheduleMaintenance() {
+		if (mMaintenanceScheduled.compareAndSet(false, true)) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mMaintenanceScheduled.set(false);
+					maintain();
+				}
+			});
+		}
+	}
+
+	private void maintain() {
+		synchronized (this) {
+			if (mClosed)
+				return;
+		}
+		trimToSize(mMaxSize);
+		compact();
+	}
+
+	/**
+	 * Account a record that no longer holds a live entry to its segment.
+	 */
+	private void bury(Entry entry) {
+		entry.segment.dead += HEADER_SIZE + entry.length;
+	}
+
+	/**
+	 * Append a record to the newest segment, starting a new one when it is
+	 * full. Called with the lock held.
+	 */
+	private Entry append(long id, byte[] data, int offset, int length, int crc) throws IOException {
+		if (mClosed)
+			throw new IOException(mDirectory + " is closed");
+		int recordSize = HEADER_SIZE + Math.max(0, length);
+		if (mActive == null || mActive.length + recordSize > mSegmentSize) {
+			int number = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+			if (mDirectory.exists() == false)
+				mDirectory.mkdirs();
+			mActive = new Segment(number, new File(mDirectory, number + SEGMENT_SUFFIX));
+			mSegments.put(number, mActive);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putLong(id).putInt(length).putInt(crc);
+		header.flip();
+		long position = mActive.length;
+		FileChannel channel = mActive.channel;
+		channel.position(position);
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		if (length > 0) {
+			ByteBuffer body = ByteBuffer.wrap(data, offset, length);
+			while (body.hasRemaining()) {
+				channel.write(body);
+			}
+		}
+		mActive.length += recordSize;
+		if (length == REMOVED) {
+			return null;
+		}
+		return new Entry(mActive, position, length, crc);
+	}
+
+	/**
+	 * Read the records of every segment, oldest first, then order the live
+	 * entries by their persisted access times.
+	 */
+	private void load() {
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			files = new File[0];
+		TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SEGMENT_SUFFIX) == false)
+				continue;
+			try {
+				found.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+			} catch (NumberFormatException e) {
+			}
+		}
+		HashMap<Long, Entry> loaded = new HashMap<Long, Entry>();
+		for (Map.Entry<Integer, File> file : found.entrySet()) {
+			try {
+				Segment segment = new Segment(file.getKey(), file.getValue());
+				scan(segment, loaded);
+				synchronized (this) {
+					if (mClosed) {
+						segment.close();
+						return;
+					}
+					mSegments.put(segment.number, segment);
+					mActive = segment;
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "can't open " + file.getValue(), e);
+			}
+		}
+
+		// read after the segments, so every id written so far is known
+		Map<Long, Long> accessTimes = mAccessTimes != null && loaded.isEmpty() == false ? mAccessTimes
+				.loadAccessTimes() : null;
+		Long[] ids = loaded.keySet().toArray(new Long[loaded.size()]);
+		final long[] times = new long[ids.length];
+		Integer[] order = new Integer[ids.length];
+		ArrayList<Long> unknown = new ArrayList<Long>();
+		for (int i = 0; i < ids.length; ++i) {
+			order[i] = i;
+			if (accessTimes == null)
+				continue;
+			Long time = accessTimes.get(ids[i]);
+			if (time == null) {
+				bury(loaded.remove(ids[i]));
+				unknown.add(ids[i]);
+			} else {
+				times[i] = time;
+			}
+		}
+		if (unknown.isEmpty() == false) {
+			// on disk too, or the record comes back to life once the id is
+			// handed out again
+			synchronized (this) {
+				try {
+					for (Long id : unknown) {
+						append(id, null, 0, REMOVED, 0);
+					}
+					mActive.channel.force(false);
+				} catch (IOException e) {
+					Log.e(TAG, "can't record removal of unknown entries", e);
+				}
+			}
+			Log.i(TAG, "dropped " + unknown.size() + " entries of removed rows");
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long l = times[lhs], r = times[rhs];
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		synchronized (this) {
+			if (mClosed)
+				return;
+			for (Integer i : order) {
+				Entry entry = loaded.get(ids[i]);
+				if (entry != null) {
+					mEntries.put(ids[i], entry);
+					mSize += entry.length;
+				}
+			}
+			mLoaded = true;
+			for (Long id : mPendingRemovals) {
+				remove(id);
+			}
+			mPendingRemovals.clear();
+		}
+	}
+
+	/**
+	 * Replay the records of one segment into {@code loaded}, cutting off a
+	 * torn record at its end.
+	 */
+	private void scan(Segment segment, HashMap<Long, Entry> loaded) throws IOException {
+		long size = segment.channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long offset = 0;
+		while (offset + HEADER_SIZE <= size) {
+			header.clear();
+			segment.channel.read(header, offset);
+			header.flip();
+			int magic = header.getInt();
+			long id = header.getLong();
+			int length = header.getInt();
+			int crc = header.getInt();
+			if (magic != MAGIC || length < REMOVED || offset + HEADER_SIZE + Math.max(0, length) > size)
+				break;
+			Entry previous = loaded.remove(id);
+			if (previous != null)
+				previous.segment.dead += HEADER_SIZE + previous.length;
+			if (length != REMOVED)
+				loaded.put(id, new Entry(segment, offset, length, crc));
+			offset += HEADER_SIZE + Math.max(0, length);
+		}
+		if (offset < size) {
+			Log.w(TAG, "cutting " + (size - offset) + " torn bytes off " + segment.file);
+			segment.channel.truncate(offset);
+		}
+		segment.length = offset;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int hits = mHitCount.get();
+		int accesses = hits + mMissCount.get();
+		int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+		return String.format("PackedDiskCache[%s,entries=%d,segments=%d,size=%d/%d,hitRate=%d%%]", mDirectory,
+				mEntries.size(), mSegments.size(), mSize, mMaxSize, hitPercent);
+	}
+
+	private static final class Entry {
+		Segment segment;
+		long offset;
+		final int length;
+		final int crc;
+
+		Entry(Segment segment, long offset, int length, int crc) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+		}
+	}
+
+	private static final class Segment {
+		final int number;
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		long length;
+		// bytes of records that no longer hold a live entry
+		long dead;
+		private MappedByteBuffer mMapped;
+
+		Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			length = channel.size();
+		}
+
+		/**
+		 * @return a read-only mapping covering at least {@code size} bytes,
+		 *         remapped when the segment grew past the last one
+		 */
+		MappedByteBuffer map(long size) throws IOException {
+			if (mMapped == null || mMapped.capacity() < size) {
+				mMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			}
+			return mMapped;
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
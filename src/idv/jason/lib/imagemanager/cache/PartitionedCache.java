@@ -0,0 +1,261 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named memory cache partitions, each with its own byte quota, so one feature
+ * filling its cache can not evict the images of another. Keys of unknown
+ * partitions land in the {@link #DEFAULT_PARTITION}.
+ *
+ * <p>
+ * All partitions share one budget, {@link #maxSize()}. Quotas of named
+ * partitions are carved out of it and the default partition gets what is
+ * left, so adding a partition shrinks the default one instead of growing
+ * the total.
+ * </p>
+ *
+ * <p>
+ * A partition allowed to borrow may grow past its quota into capacity the
+ * other partitions leave unused. Borrowed space is handed back, by trimming
+ * the borrower, as soon as a lender needs it.
+ * </p>
+ */
+public abstract class PartitionedCache<C extends MemoryCache<?, ?>> {
+	public static final String DEFAULT_PARTITION = "default";
+
+	private final ConcurrentHashMap<String, Partition<C>> mPartitions = new ConcurrentHashMap<String, Partition<C>>();
+	private final Partition<C> mDefault;
+	private volatile int mMaxSize;
+
+	/**
+	 * @param maxSize
+	 *            budget shared by all partitions, all of it goes to the
+	 *            default partition until others are set
+	 */
+	public PartitionedCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		mDefault = new Partition<C>(DEFAULT_PARTITION, newCache(DEFAULT_PARTITION, maxSize), maxSize, false);
+		mPartitions.put(DEFAULT_PARTITION, mDefault);
+	}
+
+	/**
+	 * Create the cache backing a partition.
+	 */
+	protected abstract C newCache(String name, int maxSize);
+
+	/**
+	 * Change the budget shared by all partitions. The quotas of named
+	 * partitions stay, the default partition grows or shrinks.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the named partitions would leave the default partition
+	 *             nothing
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		int defaultQuota = maxSize - (mMaxSize - mDefault.quota);
+		if (defaultQuota <= 0) {
+			throw new IllegalArgumentException("maxSize " + maxSize + " <= quotas of named partitions");
+		}
+		mMaxSize = maxSize;
+		setDefaultQuota(defaultQuota);
+	}
+
+	/**
+	 * Create the partition or change its quota, taken from the default
+	 * partition.
+	 *
+	 * @param borrow
+	 *            let the partition use capacity other partitions leave unused
+	 * @throws IllegalArgumentException
+	 *             if the quota would leave the default partition nothing
+	 */
+	public void setPartition(String name, int quota, boolean borrow) {
+		if (quota <= 0) {
+			throw new IllegalArgumentException("quota <= 0");
+		}
+		if (DEFAULT_PARTITION.equals(name)) {
+			throw new IllegalArgumentException("the default partition gets what the others leave");
+		}
+		Partition<C> partition;
+		synchronized (this) {
+			partition = mPartitions.get(name);
+			int previousQuota = partition != null ? partition.quota : 0;
+			int defaultQuota = mDefault.quota + previousQuota - quota;
+			if (defaultQuota <= 0) {
+				throw new IllegalArgumentException("quota " + quota + " leaves nothing of " + mMaxSize
+						+ " to the default partition");
+			}
+			if (partition == null) {
+				partition = new Partition<C>(name, newCache(name, quota), quota, borrow);
+				mPartitions.put(name, partition);
+			} else {
+				partition.quota = quota;
+				partition.borrow = borrow;
+			}
+			partition.cache.setMaxSize(quota);
+			setDefaultQuota(defaultQuota);
+		}
+		rebalance(partition);
+	}
+
+	/**
+	 * Drop a partition and everything in it, its quota goes back to the
+	 * default partition.
+	 */
+	public void removePartition(String name) {
+		if (DEFAULT_PARTITION.equals(name)) {
+			throw new IllegalArgumentException("can't remove the default partition");
+		}
+		Partition<C> partition;
+		synchronized (this) {
+			partition = mPartitions.remove(name);
+			if (partition == null)
+				return;
+			setDefaultQuota(mDefault.quota + partition.quota);
+		}
+		partition.cache.evictAll();
+	}
+
+	/**
+	 * Called with the lock held; the default partition never borrows, so its
+	 * limit is its quota.
+	 */
+	private void setDefaultQuota(int quota) {
+		mDefault.quota = quota;
+		mDefault.cache.setMaxSize(quota);
+	}
+
+	/**
+	 * @return the cache of the named partition, or of the default partition if
+	 *         there is no partition with that name
+	 */
+	public C partition(String name) {
+		return partitionFor(name).cache;
+	}
+
+	public int quota(String name) {
+		return partitionFor(name).quota;
+	}
+
+	public List<String> partitionNames() {
+		return new ArrayList<String>(mPartitions.keySet());
+	}
+
+	/**
+	 * Same as {@link #partition} but a borrower's limit is first raised to its
+	 * quota plus what the other partitions leave unused. Call
+	 * {@link #putDone(String)} once the value is in.
+	 */
+	public C partitionForPut(String name) {
+		Partition<C> partition = partitionFor(name);
+		if (partition.borrow) {
+			partition.cache.setMaxSize(partition.quota + unusedQuota(partition));
+		}
+		return partition.cache;
+	}
+
+	/**
+	 * Take back from other borrowers what a put into {@code name} needs.
+	 */
+	public void putDone(String name) {
+		rebalance(partitionFor(name));
+	}
+
+	/**
+	 * Trim every partition to {@code keepFraction} of its quota.
+	 */
+	public void trimToFraction(float keepFraction) {
+		for (Partition<C> partition : mPartitions.values()) {
+			partition.cache.trimToSize((int) (partition.quota * keepFraction));
+		}
+	}
+
+	public void evictAll() {
+		for (Partition<C> partition : mPartitions.values()) {
+			partition.cache.evictAll();
+		}
+	}
+
+	/**
+	 * @return bytes held by all partitions
+	 */
+	public int size() {
+		int size = 0;
+		for (Partition<C> partition : mPartitions.values()) {
+			size += partition.cache.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the budget shared by all partitions, the sum of their quotas
+	 */
+	public int maxSize() {
+		return mMaxSize;
+	}
+
+	private Partition<C> partitionFor(String name) {
+		if (name == null)
+			return mDefault;
+		Partition<C> partition = mPartitions.get(name);
+		return partition != null ? partition : mDefault;
+	}
+
+	private int unusedQuota(Partition<C> except) {
+		int unused = 0;
+		for (Partition<C> partition : mPartitions.values()) {
+			if (partition != except) {
+				unused += Math.max(0, partition.quota - partition.cache.size());
+			}
+		}
+		return unused;
+	}
+
+	/**
+	 * After {@code changed} grew, take back whatever other partitions borrowed
+	 * beyond what is still unused.
+	 */
+	private void rebalance(Partition<C> changed) {
+		for (Partition<C> partition : mPartitions.values()) {
+			if (partition != changed && partition.cache.maxSize() > partition.quota) {
+				int limit = partition.quota + unusedQuota(partition);
+				if (limit < partition.cache.maxSize()) {
+					partition.cache.setMaxSize(limit);
+				}
+			}
+		}
+	}
+
+	private static final class Partition<C extends MemoryCache<?, ?>> {
+		final String name;
+		final C cache;
+		volatile int quota;
+		volatile boolean borrow;
+
+		Partition(String name, C cache, int quota, boolean borrow) {
+			this.name = name;
+			this.cache = cache;
+			this.quota = quota;
+			this.borrow = borrow;
+		}
+
+		@Override
+		public String toString() {
+			return name + "[quota=" + quota + (borrow ? ",borrow" : "") + "," + cache + "]";
+		}
+	}
+}
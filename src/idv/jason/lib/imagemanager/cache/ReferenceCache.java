@@ -0,0 +1,161 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Second level cache holding values only through soft (or weak) references,
+ * so anything still reachable after the hard cache dropped it can be handed
+ * back without going to disk. The garbage collector decides the size; cleared
+ * references are purged whenever the cache is touched.
+ */
+public class ReferenceCache<K, V> {
+	private final ConcurrentHashMap<K, Reference<V>> mMap = new ConcurrentHashMap<K, Reference<V>>();
+	private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+	private final boolean mWeak;
+
+	private final AtomicInteger mPutCount = new AtomicInteger();
+	private final AtomicInteger mHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+	private final AtomicInteger mClearedCount = new AtomicInteger();
+
+	/**
+	 * @param weak
+	 *            hold values through {@link WeakReference} instead of
+	 *            {@link SoftReference}, so they go at the next collection.
+	 */
+	public ReferenceCache(boolean weak) {
+		mWeak = weak;
+	}
+
+	public void put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+		purgeCleared();
+		Reference<V> ref;
+		if (mWeak) {
+			ref = new WeakEntry<K, V>(key, value, mQueue);
+		} else {
+			ref = new SoftEntry<K, V>(key, value, mQueue);
+		}
+		mMap.put(key, ref);
+		mPutCount.incrementAndGet();
+	}
+
+	/**
+	 * Remove and return the value for {@code key}, the caller is expected to
+	 * promote it back to the hard cache.
+	 */
+	public V take(K key) {
+		purgeCleared();
+		Reference<V> ref = mMap.remove(key);
+		V value = ref != null ? ref.get() : null;
+		if (value != null) {
+			mHitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+		return value;
+	}
+
+	public void remove(K key) {
+		mMap.remove(key);
+	}
+
+	public void clear() {
+		mMap.clear();
+		while (mQueue.poll() != null) {
+			// drain
+		}
+	}
+
+	public int size() {
+		purgeCleared();
+		return mMap.size();
+	}
+
+	/**
+	 * Every hit is a disk read and decode that did not happen.
+	 */
+	public int hitCount() {
+		return mHitCount.get();
+	}
+
+	public int missCount() {
+		return mMissCount.get();
+	}
+
+	public int putCount() {
+		return mPutCount.get();
+	}
+
+	/**
+	 * Returns the number of values the garbage collector reclaimed while in
+	 * this cache.
+	 */
+	public int clearedCount() {
+		return mClearedCount.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void purgeCleared() {
+		Reference<? extends V> ref;
+		while ((ref = mQueue.poll()) != null) {
+			K key = ((KeyedReference<K>) ref).key();
+			// a newer entry may have been put under the same key
+			if (mMap.remove(key, ref)) {
+				mClearedCount.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		int hits = mHitCount.get();
+		int accesses = hits + mMissCount.get();
+		int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+		return String.format("ReferenceCache[%s,size=%d,hits=%d,misses=%d,cleared=%d,hitRate=%d%%]",
+				mWeak ? "weak" : "soft", mMap.size(), hits, mMissCount.get(), mClearedCount.get(), hitPercent);
+	}
+
+	private interface KeyedReference<K> {
+		K key();
+	}
+
+	private static final class SoftEntry<K, V> extends SoftReference<V> implements KeyedReference<K> {
+		private final K mKey;
+
+		SoftEntry(K key, V value, ReferenceQueue<V> queue) {
+			super(value, queue);
+			mKey = key;
+		}
+
+		public K key() {
+			return mKey;
+		}
+	}
+
+	private static final class WeakEntry<K, V> extends WeakReference<V> implements KeyedReference<K> {
+		private final K mKey;
+
+		WeakEntry(K key, V value, ReferenceQueue<V> queue) {
+			super(value, queue);
+			mKey = key;
+		}
+
+		public K key() {
+			return mKey;
+		}
+	}
+}
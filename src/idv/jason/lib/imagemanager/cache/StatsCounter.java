@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free counters for the tiers that do not count for themselves: cache
+ * files and the network.
+ */
+public class StatsCounter {
+	private final AtomicLong mDiskHits = new AtomicLong();
+	private final AtomicLong mDiskMisses = new AtomicLong();
+	private final AtomicLong mDiskWrites = new AtomicLong();
+	private final AtomicLong mEncodes = new AtomicLong();
+	private final AtomicLong mEncodeTime = new AtomicLong();
+	private final AtomicLong mEncodedBytes = new AtomicLong();
+	private final AtomicLong mPassthroughBytes = new AtomicLong();
+	// format name -> count, nanos, bytes
+	private final ConcurrentMap<String, AtomicLong[]> mEncodesByFormat =
+			new ConcurrentHashMap<String, AtomicLong[]>();
+	private final AtomicLong mDiskEvictions = new AtomicLong();
+	private final AtomicLong mDiskDecodeTime = new AtomicLong();
+	private final AtomicLong mDiskSizedHits = new AtomicLong();
+	private final AtomicLong mDiskSizedDecodeTime = new AtomicLong();
+	private final AtomicLong mPackedDecodeTime = new AtomicLong();
+
+	private final AtomicLong mNetworkFetches = new AtomicLong();
+	private final AtomicLong mNetworkFailures = new AtomicLong();
+	private final AtomicLong mNetworkBytes = new AtomicLong();
+	private final AtomicLong mNetworkTime = new AtomicLong();
+
+	private final AtomicLong mVariantHits = new AtomicLong();
+
+	/**
+	 * @param sized
+	 *            size and rotation came from the index, the file was only
+	 *            opened for the decode
+	 */
+	public void recordDiskHit(long decodeNanos, boolean sized) {
+		mDiskHits.incrementAndGet();
+		mDiskDecodeTime.addAndGet(decodeNanos);
+		if (sized) {
+			mDiskSizedHits.incrementAndGet();
+			mDiskSizedDecodeTime.addAndGet(decodeNanos);
+		}
+	}
+
+	/**
+	 * @param nanos
+	 *            time to read the packed entry and decode it
+	 */
+	public void recordPackedDecode(long nanos) {
+		mPackedDecodeTime.addAndGet(nanos);
+	}
+
+	public void recordDiskMiss() {
+		mDiskMisses.incrementAndGet();
+	}
+
+	/**
+	 * A cache file was encoded from a decoded bitmap.
+	 *
+	 * @param format
+	 *            name of the format it was encoded to
+	 */
+	public void recordEncodedWrite(String format, long bytes, long encodeNanos) {
+		mDiskWrites.incrementAndGet();
+		mEncodes.incrementAndGet();
+		mEncodeTime.addAndGet(encodeNanos);
+		mEncodedBytes.addAndGet(bytes);
+		AtomicLong[] counters = mEncodesByFormat.get(format);
+		if (counters == null) {
+			AtomicLong[] created = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+			counters = mEncodesByFormat.putIfAbsent(format, created);
+			if (counters == null)
+				counters = created;
+		}
+		counters[0].incrementAndGet();
+		counters[1].addAndGet(encodeNanos);
+		counters[2].addAndGet(bytes);
+	}
+
+	/**
+	 * A cache file was stored as downloaded, without decoding or encoding.
+	 */
+	public void recordPassthroughWrite(long bytes) {
+		mDiskWrites.incrementAndGet();
+		mPassthroughBytes.addAndGet(bytes);
+	}
+
+	public void recordDiskEviction() {
+		mDiskEvictions.incrementAndGet();
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes downloaded, 0 when the transfer size is not known
+	 */
+	public void recordNetworkFetch(long bytes, long nanos, boolean success) {
+		mNetworkFetches.incrementAndGet();
+		mNetworkBytes.addAndGet(bytes);
+		mNetworkTime.addAndGet(nanos);
+		if (success == false) {
+			mNetworkFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A request was answered by scaling down a larger cached size.
+	 */
+	public void recordVariantHit() {
+		mVariantHits.incrementAndGet();
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes the cache files take, tracked by the disk cache
+	 */
+	public CacheStats.Tier diskTier(long bytes, long maxBytes) {
+		return new CacheStats.Tier(mDiskHits.get(), mDiskMisses.get(), mDiskWrites.get(), mDiskEvictions.get(),
+				bytes, maxBytes);
+	}
+
+	public CacheStats.Writes writes() {
+		long writes = mDiskWrites.get();
+		long encodes = mEncodes.get();
+		Map<String, CacheStats.Encodes> byFormat = new HashMap<String, CacheStats.Encodes>();
+		for (Map.Entry<String, AtomicLong[]> format : mEncodesByFormat.entrySet()) {
+			AtomicLong[] counters = format.getValue();
+			byFormat.put(format.getKey(), new CacheStats.Encodes(counters[0].get(), counters[1].get(),
+					counters[2].get()));
+		}
+		return new CacheStats.Writes(new CacheStats.Encodes(encodes, mEncodeTime.get(), mEncodedBytes.get()),
+				byFormat, writes - encodes, mPassthroughBytes.get());
+	}
+
+	public long diskDecodeTimeNanos() {
+		return mDiskDecodeTime.get();
+	}
+
+	public long diskSizedDecodeCount() {
+		return mDiskSizedHits.get();
+	}
+
+	public long diskSizedDecodeTimeNanos() {
+		return mDiskSizedDecodeTime.get();
+	}
+
+	public long packedDecodeTimeNanos() {
+		return mPackedDecodeTime.get();
+	}
+
+	public long networkFetchCount() {
+		return mNetworkFetches.get();
+	}
+
+	public long networkFailureCount() {
+		return mNetworkFailures.get();
+	}
+
+	public long networkBytes() {
+		return mNetworkBytes.get();
+	}
+
+	public long networkTimeNanos() {
+		return mNetworkTime.get();
+	}
+
+	public long variantHitCount() {
+		return mVariantHits.get();
+	}
+}
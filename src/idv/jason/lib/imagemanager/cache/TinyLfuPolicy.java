@@ -0,0 +1,38 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+/**
+ * TinyLFU admission: a new entry only replaces the eviction victim if it has
+ * been requested at least as often recently. One-off entries from a long
+ * fling tie with cold victims and get in, but they can not push out the small
+ * set of images every screen keeps asking for. "Keeps asking" means within
+ * the {@link FrequencySketch} window of about ten times
+ * {@code expectedEntries} requests; {@code AdmissionSimulator} under tools/
+ * compares hit ratios with plain LRU.
+ */
+public class TinyLfuPolicy implements AdmissionPolicy {
+	private final FrequencySketch mSketch;
+
+	/**
+	 * @param expectedEntries
+	 *            roughly how many entries fit in the cache this policy guards
+	 */
+	public TinyLfuPolicy(int expectedEntries) {
+		mSketch = new FrequencySketch(expectedEntries);
+	}
+
+	@Override
+	public void record(long keyHash) {
+		mSketch.increment(keyHash);
+	}
+
+	@Override
+	public boolean admit(long candidateHash, long victimHash) {
+		return mSketch.frequency(candidateHash) >= mSketch.frequency(victimHash);
+	}
+}
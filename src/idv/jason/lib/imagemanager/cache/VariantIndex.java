@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Remembers which decoded sizes of the same source are in the memory cache, so
+ * a request for a smaller size can be answered by scaling one of them down
+ * instead of decoding again. Sizes of one source share a group key, e.g. the
+ * url and every attribute except the max size.
+ *
+ * <p>
+ * The index only holds ids; the bitmaps stay in the memory cache, which must
+ * call {@link #remove(long)} when it drops one.
+ * </p>
+ */
+public class VariantIndex {
+	/**
+	 * One decoded size of a source.
+	 */
+	public static final class Variant {
+		public final long id;
+		/** memory cache partition holding the bitmap */
+		public final String partition;
+		/** requested bounds, 0 when the source was decoded in full */
+		public final int maxWidth;
+		public final int maxHeight;
+		/** actual bitmap size */
+		public final int width;
+		public final int height;
+
+		Variant(long id, String partition, int maxWidth, int maxHeight, int width, int height) {
+			this.id = id;
+			this.partition = partition;
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.width = width;
+			this.height = height;
+		}
+
+		/**
+		 * @return true if a bitmap bounded by {@code maxWidth} x
+		 *         {@code maxHeight} can be made by scaling this one down
+		 */
+		public boolean covers(int maxWidth, int maxHeight) {
+			if (this.maxWidth == 0 || this.maxHeight == 0) {
+				// the whole source, nothing larger can be decoded
+				return true;
+			}
+			return width >= maxWidth && height >= maxHeight;
+		}
+
+		@Override
+		public String toString() {
+			return "Variant[id=" + id + "," + width + "x" + height + ",max=" + maxWidth + "x" + maxHeight + "]";
+		}
+	}
+
+	private final HashMap<String, ArrayList<Variant>> mGroups = new HashMap<String, ArrayList<Variant>>();
+	private final HashMap<Long, String> mGroupOfId = new HashMap<Long, String>();
+
+	public synchronized void put(String group, long id, String partition, int maxWidth, int maxHeight,
+			int width, int height) {
+		removeLocked(id);
+		ArrayList<Variant> variants = mGroups.get(group);
+		if (variants == null) {
+			variants = new ArrayList<Variant>(2);
+			mGroups.put(group, variants);
+		}
+		variants.add(new Variant(id, partition, maxWidth, maxHeight, width, height));
+		mGroupOfId.put(id, group);
+	}
+
+	public synchronized void remove(long id) {
+		removeLocked(id);
+	}
+
+	/**
+	 * @return the smallest variant of {@code group} that covers the requested
+	 *         bounds, or null
+	 */
+	public synchronized Variant find(String group, int maxWidth, int maxHeight) {
+		ArrayList<Variant> variants = mGroups.get(group);
+		if (variants == null)
+			return null;
+		Variant best = null;
+		for (Variant variant : variants) {
+			if (variant.covers(maxWidth, maxHeight)
+					&& (best == null || (long) variant.width * variant.height < (long) best.width * best.height)) {
+				best = variant;
+			}
+		}
+		return best;
+	}
+
+	public synchronized void clear() {
+		mGroups.clear();
+		mGroupOfId.clear();
+	}
+
+	public synchronized int size() {
+		return mGroupOfId.size();
+	}
+
+	private void removeLocked(long id) {
+		String group = mGroupOfId.remove(id);
+		if (group == null)
+			return;
+		ArrayList<Variant> variants = mGroups.get(group);
+		for (int i = 0; i < variants.size(); ++i) {
+			if (variants.get(i).id == id) {
+				variants.remove(i);
+				break;
+			}
+		}
+		if (variants.isEmpty()) {
+			mGroups.remove(group);
+		}
+	}
+}
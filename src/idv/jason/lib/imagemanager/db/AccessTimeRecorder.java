@@ -0,0 +1,139 @@
+package idv.jason.lib.imagemanager.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Write-behind recorder of {@link ImageTable#COLUMN_ACCESS_TIME}. Accesses
+ * are collected in memory, the latest one per row wins, and written in one
+ * transaction every flush interval or once enough are pending. At most one
+ * interval of accesses is lost if the process dies.
+ */
+public class AccessTimeRecorder {
+	private static final String TAG = AccessTimeRecorder.class.getSimpleName();
+
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 10 * 1000;
+	private static final int MAX_PENDING = 256;
+
+	private final SQLiteDatabase mDb;
+	private final ScheduledExecutorService mExecutor;
+
+	private HashMap<Long, Long> mPending = new HashMap<Long, Long>();
+	private boolean mFlushScheduled = false;
+	private ScheduledFuture<?> mPeriodicFlush;
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public AccessTimeRecorder(SQLiteDatabase db, ScheduledExecutorService executor) {
+		mDb = db;
+		mExecutor = executor;
+		setFlushInterval(DEFAULT_FLUSH_INTERVAL_MS);
+	}
+
+	/**
+	 * Upper bound of accesses lost when the process is killed.
+	 */
+	public synchronized void setFlushInterval(long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("intervalMillis <= 0");
+		}
+		if (mPeriodicFlush != null) {
+			mPeriodicFlush.cancel(false);
+		}
+		mPeriodicFlush = mExecutor.scheduleWithFixedDelay(mFlush, intervalMillis, intervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Row {@code id} was used now. Cheap, nothing is written here.
+	 */
+	public void record(long id) {
+		record(id, System.currentTimeMillis());
+	}
+
+	public synchronized void record(long id, long timeMillis) {
+		mPending.put(id, timeMillis);
+		if (mPending.size() >= MAX_PENDING && mFlushScheduled == false) {
+			mFlushScheduled = true;
+			mExecutor.execute(mFlush);
+		}
+	}
+
+	/**
+	 * Forget pending accesses of a row that is being deleted.
+	 */
+	public synchronized void remove(long id) {
+		mPending.remove(id);
+	}
+
+	/**
+	 * Write everything pending in one transaction. Blocks on the database,
+	 * call it from a background thread.
+	 */
+	public void flush() {
+		HashMap<Long, Long> pending;
+		synchronized (this) {
+			mFlushScheduled = false;
+			if (mPending.isEmpty())
+				return;
+			pending = mPending;
+			mPending = new HashMap<Long, Long>();
+		}
+		SQLiteStatement update = null;
+		try {
+			update = mDb.compileStatement("UPDATE " + ImageTable.TABLE_NAME + " SET "
+					+ ImageTable.COLUMN_ACCESS_TIME + "=? WHERE " + ImageTable.COLUMN_ID + "=?");
+			mDb.beginTransaction();
+			try {
+				for (Map.Entry<Long, Long> entry : pending.entrySet()) {
+					update.bindLong(1, entry.getValue());
+					update.bindLong(2, entry.getKey());
+					update.execute();
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "flush failed, " + pending.size() + " access times lost", e);
+		} finally {
+			if (update != null)
+				update.close();
+		}
+	}
+
+	/**
+	 * Flush on the background thread, e.g. when the app goes to the
+	 * background and may be killed.
+	 */
+	public void flushAsync() {
+		mExecutor.execute(mFlush);
+	}
+
+	/**
+	 * Stop the periodic flush and write what is pending. Blocks on the
+	 * database like {@link #flush()}.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (mPeriodicFlush != null) {
+				mPeriodicFlush.cancel(false);
+				mPeriodicFlush = null;
+			}
+		}
+		flush();
+	}
+}
@@ -0,0 +1,93 @@
+package idv.jason.lib.imagemanager.db;
+
+import java.util.Map;
+
+/**
+ * Maps an image url and its attribute string to the row id naming its cache
+ * file. {@link SQLiteCacheIndex} keeps it in the {@link ImageTable}, while
+ * {@link JournalCacheIndex} answers from memory and persists to an
+ * append-only journal.
+ *
+ * <p>
+ * Ids name files in the download path, so use one index per download path.
+ * </p>
+ */
+public interface CacheIndex {
+	public static final long NO_ID = -1;
+
+	/**
+	 * @param attribute
+	 *            {@code ImageAttribute.getStringAttr()}, null for an image
+	 *            without attributes
+	 * @return the id, or {@link #NO_ID}
+	 */
+	public long find(String url, String attribute);
+
+	/**
+	 * Atomic: callers racing on the same url and attribute all get the id
+	 * of one entry.
+	 *
+	 * @return the id of the entry, inserted if there was none
+	 */
+	public long findOrInsert(String url, String attribute);
+
+	/**
+	 * Drop the entry and its pending access.
+	 */
+	public void remove(long id);
+
+	/**
+	 * The entry was used now. Written behind, must be cheap.
+	 */
+	public void recordAccess(long id);
+
+	/**
+	 * @return id -> last access in epoch milliseconds of every entry
+	 */
+	public Map<Long, Long> loadAccessTimes();
+
+	/**
+	 * @return whether an entry has this id
+	 */
+	public boolean contains(long id);
+
+	/**
+	 * One page of {@link #loadAccessTimes()} for incremental scans.
+	 *
+	 * @return id -> last access of at most {@code limit} entries with an id
+	 *         above {@code afterId}, in ascending id order
+	 */
+	public Map<Long, Long> loadAccessTimes(long afterId, int limit);
+
+	/**
+	 * Entries with an id in {@code fromId} (exclusive) to {@code toId}
+	 * (inclusive) that have the url and attribute of another entry, which
+	 * {@link #find} returns instead.
+	 *
+	 * @return duplicate id -> id {@link #find} returns, {@link #NO_ID} if
+	 *         the duplicate can not be found at all
+	 */
+	public Map<Long, Long> findDuplicates(long fromId, long toId);
+
+	/**
+	 * Remember what the file of the entry decodes to, once it is written.
+	 */
+	public void setImageInfo(long id, ImageInfo info);
+
+	/**
+	 * @return what {@link #setImageInfo} recorded, null if nothing
+	 */
+	public ImageInfo getImageInfo(long id);
+
+	/**
+	 * Persist whatever is buffered, from a background thread.
+	 */
+	public void flushAsync();
+
+	/**
+	 * Persist whatever is buffered and stop writing behind. Blocks on I/O,
+	 * call it from a background thread; the index must not be used
+	 * afterwards.
+	 */
+	public void close();
+}
@@ -9,7 +9,18 @@ import android.database.sqlite.SQLiteOpenHelper;
 public class DatabaseHelper extends SQLiteOpenHelper{
 	public static final String AUTHORITY = "idv.jason.lib.imagemanager";
 	private static final String DATABASE_NAME = "imagemanager.db";
-	private static final int DATABASE_VERSION = 1;
+	// 2: access_time is an INTEGER epoch in milliseconds
+	// 3: width, height, config and orientation of the cache file
+	// 4: key_hash, and one row per (image_url, attribute) once
+	//    SQLiteCacheIndex backfilled and deduplicated an upgraded table
+	// 5: id AUTOINCREMENT, the id of a removed row is never handed out
+	//    again while memory tiers or the packed cache may still hold it
+	private static final int DATABASE_VERSION = 5;
+
+	// image_url only, used until the unique index exists and then dropped
+	static final String INDEX_URL = "IDX_" + ImageTable.TABLE_NAME;
+	static final String INDEX_KEY_HASH = "IDX_" + ImageTable.TABLE_NAME + "_" + ImageTable.COLUMN_KEY_HASH;
+	static final String INDEX_UNIQUE_KEY = "UIDX_" + ImageTable.TABLE_NAME + "_KEY";
 	
 	public DatabaseHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -17,19 +28,39 @@ public class DatabaseHelper extends SQLiteOpenHelper{
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
+		createImageTable(db, ImageTable.TABLE_NAME);
+		createKeyHashIndex(db);
+		createUniqueKeyIndex(db);
+	}
+
+	private static void createKeyHashIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_KEY_HASH + " on " + ImageTable.TABLE_NAME + "("
+				+ ImageTable.COLUMN_KEY_HASH + ");");
+	}
+
+	/**
+	 * Fails while the table holds more than one row of a url and attribute.
+	 */
+	static void createUniqueKeyIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_UNIQUE_KEY + " on " + ImageTable.TABLE_NAME
+				+ "(" + ImageTable.COLUMN_IMAGE_URL + "," + ImageTable.COLUMN_ATTRIBUTE + ");");
+	}
+	
+	private void createImageTable(SQLiteDatabase db, String tableName) {
 		StringBuilder sqlBuilder = new StringBuilder();
 		sqlBuilder.append("Create Table {0} (")
-				  .append(ImageTable.COLUMN_ID+" INTEGER PRIMARY KEY,")
+				  .append(ImageTable.COLUMN_ID+" INTEGER PRIMARY KEY AUTOINCREMENT,")
 				  .append(ImageTable.COLUMN_IMAGE_URL+" TEXT NOT NULL,")
 				  .append(ImageTable.COLUMN_URL+" TEXT ,")
 				  .append(ImageTable.COLUMN_STATUS+" TEXT ,")
-				  .append(ImageTable.COLUMN_ACCESS_TIME+" TEXT ,")
-				  .append(ImageTable.COLUMN_ATTRIBUTE + " TEXT);");
-		createTable(db, sqlBuilder.toString(), ImageTable.TABLE_NAME);
-		
-		String INDEX_NAME = "IDX_"+ImageTable.TABLE_NAME;
-		String sql = "CREATE INDEX "+ INDEX_NAME +" on "+ImageTable.TABLE_NAME+"("+ImageTable.COLUMN_IMAGE_URL+");";
-		db.execSQL(sql);
+				  .append(ImageTable.COLUMN_ACCESS_TIME+" INTEGER ,")
+				  .append(ImageTable.COLUMN_ATTRIBUTE + " TEXT ,")
+				  .append(ImageTable.COLUMN_WIDTH + " INTEGER DEFAULT 0 ,")
+				  .append(ImageTable.COLUMN_HEIGHT + " INTEGER DEFAULT 0 ,")
+				  .append(ImageTable.COLUMN_CONFIG + " TEXT ,")
+				  .append(ImageTable.COLUMN_ORIENTATION + " INTEGER DEFAULT 0 ,")
+				  .append(ImageTable.COLUMN_KEY_HASH + " INTEGER);");
+		createTable(db, sqlBuilder.toString(), tableName);
 	}
 	
 	private void createTable(SQLiteDatabase db, String sql, String tableName) {
@@ -38,9 +69,59 @@ public class DatabaseHelper extends SQLiteOpenHelper{
 	}
 
 	@Override
-	public void onUpgrade(SQLiteDatabase arg0, int arg1, int arg2) {
-		// TODO Auto-generated method stub
-		
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2) {
+			// access_time was toGMTString() text, which does not sort; rows
+			// keep their ids and files, their access time starts over at 0
+			String columns = ImageTable.COLUMN_ID + "," + ImageTable.COLUMN_IMAGE_URL + ","
+					+ ImageTable.COLUMN_URL + "," + ImageTable.COLUMN_STATUS + "," + ImageTable.COLUMN_ATTRIBUTE;
+			rebuildImageTable(db, columns + "," + ImageTable.COLUMN_ACCESS_TIME, columns + ",0");
+		} else {
+			// the rebuild above creates every column already
+			if (oldVersion < 3) {
+				addColumn(db, ImageTable.COLUMN_WIDTH, "INTEGER DEFAULT 0");
+				addColumn(db, ImageTable.COLUMN_HEIGHT, "INTEGER DEFAULT 0");
+				addColumn(db, ImageTable.COLUMN_CONFIG, "TEXT");
+				addColumn(db, ImageTable.COLUMN_ORIENTATION, "INTEGER DEFAULT 0");
+			}
+			if (oldVersion < 4) {
+				addColumn(db, ImageTable.COLUMN_KEY_HASH, "INTEGER");
+			}
+			if (oldVersion < 5) {
+				// AUTOINCREMENT can only be given when a table is created
+				String columns = ImageTable.COLUMN_ID + "," + ImageTable.COLUMN_IMAGE_URL + ","
+						+ ImageTable.COLUMN_URL + "," + ImageTable.COLUMN_STATUS + ","
+						+ ImageTable.COLUMN_ACCESS_TIME + "," + ImageTable.COLUMN_ATTRIBUTE + ","
+						+ ImageTable.COLUMN_WIDTH + "," + ImageTable.COLUMN_HEIGHT + "," + ImageTable.COLUMN_CONFIG
+						+ "," + ImageTable.COLUMN_ORIENTATION + "," + ImageTable.COLUMN_KEY_HASH;
+				rebuildImageTable(db, columns, columns);
+			}
+		}
+		// hashing every row and removing duplicates would hold up opening
+		// the database, SQLiteCacheIndex does it in the background
+		createKeyHashIndex(db);
+	}
+
+	/**
+	 * Recreate the table as {@link #createImageTable} defines it, copying
+	 * {@code values} of every row into {@code columns}. Rows keep their ids;
+	 * indexes are dropped with the old table, SQLiteCacheIndex creates the
+	 * unique one again.
+	 */
+	private void rebuildImageTable(SQLiteDatabase db, String columns, String values) {
+		String tmp = ImageTable.TABLE_NAME + "_new";
+		createImageTable(db, tmp);
+		db.execSQL("INSERT INTO " + tmp + "(" + columns + ") SELECT " + values + " FROM "
+				+ ImageTable.TABLE_NAME + ";");
+		db.execSQL("DROP TABLE " + ImageTable.TABLE_NAME + ";");
+		db.execSQL("ALTER TABLE " + tmp + " RENAME TO " + ImageTable.TABLE_NAME + ";");
+		// lookups go by url until the unique index exists
+		db.execSQL("CREATE INDEX " + INDEX_URL + " on " + ImageTable.TABLE_NAME + "("
+				+ ImageTable.COLUMN_IMAGE_URL + ");");
+	}
+
+	private void addColumn(SQLiteDatabase db, String column, String type) {
+		db.execSQL("ALTER TABLE " + ImageTable.TABLE_NAME + " ADD COLUMN " + column + " " + type + ";");
 	}
 
 
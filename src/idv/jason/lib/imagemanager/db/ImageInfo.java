@@ -0,0 +1,47 @@
+package idv.jason.lib.imagemanager.db;
+
+import android.graphics.Bitmap;
+
+/**
+ * What a cache file decodes to, recorded in the {@link CacheIndex} when it is
+ * written so a read can size its decode without opening the file first.
+ */
+public class ImageInfo {
+	/** size of the encoded image, before any rotation */
+	public final int width;
+	public final int height;
+	/** {@link Bitmap.Config} name of the bitmap it was encoded from, or null */
+	public final String config;
+	/** EXIF rotation in degrees to apply after decoding */
+	public final int orientation;
+
+	public ImageInfo(int width, int height, String config, int orientation) {
+		this.width = width;
+		this.height = height;
+		this.config = config;
+		this.orientation = orientation;
+	}
+
+	public static ImageInfo of(Bitmap bitmap) {
+		Bitmap.Config config = bitmap.getConfig();
+		return new ImageInfo(bitmap.getWidth(), bitmap.getHeight(), config != null ? config.name() : null, 0);
+	}
+
+	/**
+	 * @return null if unknown
+	 */
+	public Bitmap.Config getConfig() {
+		if (config == null)
+			return null;
+		try {
+			return Bitmap.Config.valueOf(config);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ImageInfo[" + width + "x" + height + "," + config + "," + orientation + "]";
+	}
+}
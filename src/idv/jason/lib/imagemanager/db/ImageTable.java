@@ -19,10 +19,17 @@ public class ImageTable {
 	public static final String COLUMN_IMAGE_URL = "image_url";
 	public static final String COLUMN_URL = "url";
 	public static final String COLUMN_STATUS = "status"; // processing/done
-	public static final String COLUMN_ACCESS_TIME = "access_time";
+	public static final String COLUMN_ACCESS_TIME = "access_time"; // epoch ms, see AccessTimeRecorder
 	public static final String COLUMN_ATTRIBUTE = "attribute";
+	// what the cache file decodes to, see ImageInfo; 0 or null if unknown
+	public static final String COLUMN_WIDTH = "width";
+	public static final String COLUMN_HEIGHT = "height";
+	public static final String COLUMN_CONFIG = "config";
+	public static final String COLUMN_ORIENTATION = "orientation";
+	// keyHash(image_url, attribute), null on rows not backfilled yet
+	public static final String COLUMN_KEY_HASH = "key_hash";
 	
-	public static final String DEFAULT_SORT_ORDER = COLUMN_ACCESS_TIME+" DESC";
+	public static final String DEFAULT_SORT_ORDER = COLUMN_ACCESS_TIME+" DESC,"+COLUMN_ID+" DESC";
 
 	public static final int COLUMN_POS_ID 			= 1;
 	public static final int COLUMN_POS_IMAGE_URL	= 2;
@@ -30,7 +37,32 @@ public class ImageTable {
 	public static final int COLUMN_POS_STATUS 		= 4;
 	public static final int COLUMN_POS_ACCESS_TIME 	= 5;
 	public static final int COLUMN_POS_ATTRIBUTE 	= 6;
+	public static final int COLUMN_POS_WIDTH 		= 7;
+	public static final int COLUMN_POS_HEIGHT 		= 8;
+	public static final int COLUMN_POS_CONFIG 		= 9;
+	public static final int COLUMN_POS_ORIENTATION 	= 10;
+	public static final int COLUMN_POS_KEY_HASH 	= 11;
 	
 	private ImageTable() {
 	}
+
+	/**
+	 * 64-bit FNV-1a hash of the url and attribute a row is looked up by.
+	 *
+	 * @param attribute
+	 *            as stored, "NULL" for an image without attributes
+	 */
+	public static long keyHash(String url, String attribute) {
+		long hash = 0xcbf29ce484222325L;
+		hash = hash(hash, url);
+		hash = (hash ^ '\n') * 0x100000001b3L;
+		return hash(hash, attribute);
+	}
+
+	private static long hash(long hash, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,691 @@
+package idv.jason.lib.imagemanager.db;
+
+import idv.jason.lib.imagemanager.tasks.ImageManagerThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * {@link CacheIndex} held in memory and persisted to an append-only journal,
+ * so a lookup is a hash map access instead of a SQLite query.
+ *
+ * <p>
+ * The journal is a header followed by one tab separated record per line:
+ * <ul>
+ * <li>{@code P id time url attribute} an entry was inserted</li>
+ * <li>{@code A id time} an entry was accessed</li>
+ * <li>{@code I id width height config orientation} the file of an entry was
+ * written, see {@link ImageInfo}</li>
+ * <li>{@code R id} an entry was removed</li>
+ * </ul>
+ * Records go through a buffered writer that is flushed every flush interval,
+ * which bounds what a killed process loses. Accesses are only collected in
+ * memory, the latest one per entry, and written as {@code A} records by that
+ * flush. The journal is read on a thread of its own when the index is
+ * opened; lookups made before that wait for it, inserts also for the walk of
+ * the cache directory that follows. Once it holds more superseded records
+ * than live entries, it is rewritten on the executor with one {@code P}
+ * record per entry; the records are written outside the lock, from a
+ * snapshot.
+ * </p>
+ */
+public class JournalCacheIndex implements CacheIndex {
+	private static final String TAG = JournalCacheIndex.class.getSimpleName();
+
+	static final String MAGIC = "idv.jason.lib.imagemanager.journal";
+	static final String VERSION = "1";
+
+	private static final String PUT = "P";
+	private static final String ACCESS = "A";
+	private static final String REMOVE = "R";
+	private static final String INFO = "I";
+	private static final String NULL_ATTRIBUTE = "NULL";
+
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 10 * 1000;
+	private static final int MIN_REDUNDANT_TO_COMPACT = 2000;
+
+	private final File mJournal;
+	private final File mCacheDirectory;
+	private final ScheduledExecutorService mExecutor;
+	private final ScheduledFuture<?> mPeriodicFlush;
+	// the journal was read
+	private final CountDownLatch mLoaded = new CountDownLatch(1);
+	// mNextId is past every id-named file
+	private final CountDownLatch mIdsKnown = new CountDownLatch(1);
+
+	private final HashMap<String, Entry> mByKey = new HashMap<String, Entry>();
+	private final HashMap<Long, Entry> mById = new HashMap<Long, Entry>();
+	// id -> latest access time not written yet, guarded by itself so
+	// recording an access never waits for the index lock
+	private final HashMap<Long, Long> mPendingAccesses = new HashMap<Long, Long>();
+	private long mNextId = 1;
+	// records in the journal that no longer describe a live entry
+	private int mRedundantCount;
+	private boolean mCompactScheduled;
+	private boolean mClosed;
+	// null when the journal can not be written, the index then lives in
+	// memory only
+	private Writer mWriter;
+	// records appended while a compaction writes its snapshot, null when
+	// none is running
+	private ArrayList<String> mCompactTail;
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param journal
+	 *            file the index is kept in
+	 * @param cacheDirectory
+	 *            where the files named by the ids live; new ids start past
+	 *            every id-named file already in it or its subdirectories
+	 */
+	public JournalCacheIndex(File journal, File cacheDirectory, ScheduledExecutorService executor) {
+		mJournal = journal;
+		mCacheDirectory = cacheDirectory;
+		mExecutor = executor;
+		// not on the executor: tasks queued there, e.g. the disk cache
+		// scan reading access times, wait for the load
+		new ImageManagerThreadFactory("journal_load").newThread(new Runnable() {
+			@Override
+			public void run() {
+				load();
+			}
+		}).start();
+		mPeriodicFlush = mExecutor.scheduleWithFixedDelay(mFlush, DEFAULT_FLUSH_INTERVAL_MS,
+				DEFAULT_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long find(String url, String attribute) {
+		awaitLoaded();
+		synchronized (this) {
+			Entry entry = mByKey.get(key(url, attribute));
+			return entry != null ? entry.id : NO_ID;
+		}
+	}
+
+	@Override
+	public long findOrInsert(String url, String attribute) {
+		long id = find(url, attribute);
+		if (id != NO_ID)
+			return id;
+		// a new id has to be past every file in the cache directory
+		await(mIdsKnown);
+		synchronized (this) {
+			String key = key(url, attribute);
+			Entry entry = mByKey.get(key);
+			if (entry == null) {
+				entry = new Entry(mNextId++, url, attribute, System.currentTimeMillis());
+				mByKey.put(key, entry);
+				mById.put(entry.id, entry);
+				append(putRecord(entry));
+			}
+			return entry.id;
+		}
+	}
+
+	@Override
+	public void remove(long id) {
+		synchronized (mPendingAccesses) {
+			mPendingAccesses.remove(id);
+		}
+		awaitLoaded();
+		synchronized (this) {
+			Entry entry = mById.remove(id);
+			if (entry == null)
+				return;
+			String key = key(entry.url, entry.attribute);
+			if (mByKey.get(key) == entry)
+				mByKey.remove(key);
+			append(REMOVE + '\t' + id);
+			// the P record, its A and I records and this R are all dead now
+			mRedundantCount += entry.info != null ? 3 : 2;
+			scheduleCompactIfNeeded();
+		}
+	}
+
+	/**
+	 * Cheap, callable on the UI thread: the access is written by the next
+	 * flush.
+	 */
+	@Override
+	public void recordAccess(long id) {
+		long now = System.currentTimeMillis();
+		synchronized (mPendingAccesses) {
+			mPendingAccesses.put(id, now);
+		}
+	}
+
+	@Override
+	public void setImageInfo(long id, ImageInfo info) {
+		awaitLoaded();
+		synchronized (this) {
+			Entry entry = mById.get(id);
+			if (entry == null)
+				return;
+			if (entry.info != null)
+				mRedundantCount++;
+			entry.info = info;
+			append(infoRecord(entry));
+			scheduleCompactIfNeeded();
+		}
+	}
+
+	@Override
+	public ImageInfo getImageInfo(long id) {
+		awaitLoaded();
+		synchronized (this) {
+			Entry entry = mById.get(id);
+			return entry != null && entry.info != null && entry.info.width > 0 ? entry.info : null;
+		}
+	}
+
+	@Override
+	public Map<Long, Long> loadAccessTimes() {
+		awaitLoaded();
+		HashMap<Long, Long> pending = pendingAccesses();
+		synchronized (this) {
+			HashMap<Long, Long> times = new HashMap<Long, Long>(mById.size() * 2);
+			for (Entry entry : mById.values()) {
+				Long time = pending.get(entry.id);
+				times.put(entry.id, time != null ? time : entry.accessTime);
+			}
+			return times;
+		}
+	}
+
+	@Override
+	public boolean contains(long id) {
+		awaitLoaded();
+		synchronized (this) {
+			return mById.containsKey(id);
+		}
+	}
+
+	@Override
+	public Map<Long, Long> loadAccessTimes(long afterId, int limit) {
+		awaitLoaded();
+		HashMap<Long, Long> pending = pendingAccesses();
+		synchronized (this) {
+			ArrayList<Long> ids = new ArrayList<Long>();
+			for (Long id : mById.keySet()) {
+				if (id > afterId)
+					ids.add(id);
+			}
+			Collections.sort(ids);
+			LinkedHashMap<Long, Long> times = new LinkedHashMap<Long, Long>();
+			for (int i = 0; i < ids.size() && i < limit; ++i) {
+				Long time = pending.get(ids.get(i));
+				times.put(ids.get(i), time != null ? time : mById.get(ids.get(i)).accessTime);
+			}
+			return times;
+		}
+	}
+
+	@Override
+	public Map<Long, Long> findDuplicates(long fromId, long toId) {
+		awaitLoaded();
+		synchronized (this) {
+			// a journal holding two P records of one key only maps the later
+			// one, the earlier stays in mById
+			HashMap<Long, Long> duplicates = new HashMap<Long, Long>();
+			for (Entry entry : mById.values()) {
+				if (entry.id <= fromId || entry.id > toId)
+					continue;
+				Entry kept = mByKey.get(key(entry.url, entry.attribute));
+				if (kept != entry)
+					duplicates.put(entry.id, kept != null ? kept.id : NO_ID);
+			}
+			return duplicates;
+		}
+	}
+
+	@Override
+	public void flushAsync() {
+		mExecutor.execute(mFlush);
+	}
+
+	public synchronized int size() {
+		return mById.size();
+	}
+
+	/**
+	 * Write pending accesses and buffered records to the journal. Accesses
+	 * stay pending until the journal has been read.
+	 */
+	public void flush() {
+		HashMap<Long, Long> accesses = null;
+		if (mLoaded.getCount() == 0) {
+			synchronized (mPendingAccesses) {
+				if (mPendingAccesses.isEmpty() == false) {
+					accesses = new HashMap<Long, Long>(mPendingAccesses);
+					mPendingAccesses.clear();
+				}
+			}
+		}
+		synchronized (this) {
+			if (accesses != null) {
+				for (Map.Entry<Long, Long> access : accesses.entrySet()) {
+					Entry entry = mById.get(access.getKey());
+					if (entry == null)
+						continue;
+					entry.accessTime = access.getValue();
+					append(ACCESS + '\t' + entry.id + '\t' + entry.accessTime);
+					mRedundantCount++;
+				}
+				scheduleCompactIfNeeded();
+			}
+			if (mWriter == null)
+				return;
+			try {
+				mWriter.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "can't write " + mJournal, e);
+				closeWriter();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the journal to be read, so the writer is not opened again
+	 * behind it; records added later stay in memory.
+	 */
+	@Override
+	public void close() {
+		mPeriodicFlush.cancel(false);
+		awaitLoaded();
+		synchronized (this) {
+			mClosed = true;
+			flush();
+			closeWriter();
+		}
+	}
+
+	private void awaitLoaded() {
+		await(mLoaded);
+	}
+
+	private HashMap<Long, Long> pendingAccesses() {
+		synchronized (mPendingAccesses) {
+			return new HashMap<Long, Long>(mPendingAccesses);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read the journal, which releases lookups, then walk the cache
+	 * directory for the largest id-named file, which releases inserts.
+	 */
+	private void load() {
+		long maxId = 0;
+		boolean intact = true;
+		BufferedReader reader = null;
+		synchronized (this) {
+			try {
+				reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournal), "UTF-8"));
+				if (MAGIC.equals(reader.readLine()) == false || VERSION.equals(reader.readLine()) == false) {
+					throw new IOException("unexpected journal header");
+				}
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (readRecord(line) == false) {
+						// a torn write at the end, keep what was read so far
+						Log.w(TAG, "dropping journal from: " + line);
+						intact = false;
+						break;
+					}
+				}
+			} catch (FileNotFoundException e) {
+				intact = false;
+			} catch (IOException e) {
+				Log.w(TAG, "can't read " + mJournal + ", starting empty", e);
+				mByKey.clear();
+				mById.clear();
+				intact = false;
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			for (Long id : mById.keySet()) {
+				maxId = Math.max(maxId, id);
+			}
+			mNextId = maxId + 1;
+			if (intact) {
+				openWriter(true);
+			} else {
+				rewrite();
+			}
+			mLoaded.countDown();
+		}
+		maxId = maxFileId(mCacheDirectory);
+		synchronized (this) {
+			mNextId = Math.max(mNextId, maxId + 1);
+		}
+		mIdsKnown.countDown();
+	}
+
+	/**
+	 * @return false if the line is not a valid record
+	 */
+	private boolean readRecord(String line) {
+		String[] fields = line.split("\t", -1);
+		try {
+			if (PUT.equals(fields[0]) && fields.length == 5) {
+				Entry entry = new Entry(Long.parseLong(fields[1]), unescape(fields[3]),
+						NULL_ATTRIBUTE.equals(fields[4]) ? null : unescape(fields[4]), Long.parseLong(fields[2]));
+				Entry previous = mById.put(entry.id, entry);
+				if (previous != null) {
+					mByKey.remove(key(previous.url, previous.attribute));
+					mRedundantCount++;
+				}
+				mByKey.put(key(entry.url, entry.attribute), entry);
+				return true;
+			} else if (ACCESS.equals(fields[0]) && fields.length == 3) {
+				Entry entry = mById.get(Long.parseLong(fields[1]));
+				if (entry != null)
+					entry.accessTime = Long.parseLong(fields[2]);
+				mRedundantCount++;
+				return true;
+			} else if (INFO.equals(fields[0]) && fields.length == 6) {
+				Entry entry = mById.get(Long.parseLong(fields[1]));
+				ImageInfo info = new ImageInfo(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+						NULL_ATTRIBUTE.equals(fields[4]) ? null : fields[4], Integer.parseInt(fields[5]));
+				if (entry == null || entry.info != null)
+					mRedundantCount++;
+				if (entry != null)
+					entry.info = info;
+				return true;
+			} else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+				Entry entry = mById.remove(Long.parseLong(fields[1]));
+				if (entry != null) {
+					String key = key(entry.url, entry.attribute);
+					if (mByKey.get(key) == entry)
+						mByKey.remove(key);
+					if (entry.info != null)
+						mRedundantCount++;
+				}
+				mRedundantCount += 2;
+				return true;
+			}
+		} catch (NumberFormatException e) {
+		}
+		return false;
+	}
+
+	/**
+	 * @return the largest id-named file in {@code dir} or its subdirectories
+	 */
+	private static long maxFileId(File dir) {
+		long max = 0;
+		File[] files = dir != null ? dir.listFiles() : null;
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					max = Math.max(max, maxFileId(file));
+					continue;
+				}
+				try {
+					max = Math.max(max, Long.parseLong(file.getName()));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		return max;
+	}
+
+	private void append(String record) {
+		if (mCompactTail != null)
+			mCompactTail.add(record);
+		if (mWriter == null)
+			return;
+		try {
+			mWriter.write(record);
+			mWriter.write('\n');
+		} catch (IOException e) {
+			Log.e(TAG, "can't write " + mJournal, e);
+			closeWriter();
+		}
+	}
+
+	private void scheduleCompactIfNeeded() {
+		if (mCompactScheduled || mRedundantCount < MIN_REDUNDANT_TO_COMPACT || mRedundantCount < mById.size())
+			return;
+		mCompactScheduled = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	/**
+	 * Rewrite the journal from a snapshot of the live entries without holding
+	 * the lock while writing it. Records appended meanwhile still go to the
+	 * old journal and are also kept in {@link #mCompactTail}, which is
+	 * written after the snapshot under the lock, just before the rename.
+	 */
+	private void compact() {
+		ArrayList<String> records;
+		int redundant;
+		synchronized (this) {
+			mCompactScheduled = false;
+			if (mClosed || mCompactTail != null)
+				return;
+			records = snapshot();
+			redundant = mRedundantCount;
+			mCompactTail = new ArrayList<String>();
+		}
+		File tmp = new File(mJournal.getPath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			writer.write(MAGIC + '\n' + VERSION + '\n');
+			writeRecords(writer, records);
+			synchronized (this) {
+				if (mClosed)
+					throw new IOException("closed while compacting");
+				writeRecords(writer, mCompactTail);
+				writer.close();
+				writer = null;
+				mCompactTail = null;
+				// the tail is in the new journal, nothing buffered is lost
+				closeWriter();
+				if (tmp.renameTo(mJournal)) {
+					mRedundantCount -= redundant;
+				} else {
+					Log.e(TAG, "can't rename " + tmp);
+					tmp.delete();
+				}
+				openWriter(true);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "can't compact " + mJournal, e);
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ignored) {
+				}
+			}
+			tmp.delete();
+			synchronized (this) {
+				mCompactTail = null;
+			}
+		}
+	}
+
+	/**
+	 * Replace the journal with one holding a record per live entry. Called
+	 * with the lock held, only while loading.
+	 */
+	private void rewrite() {
+		closeWriter();
+		File tmp = new File(mJournal.getPath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			writer.write(MAGIC + '\n' + VERSION + '\n');
+			writeRecords(writer, snapshot());
+			writer.close();
+			writer = null;
+			if (tmp.renameTo(mJournal) == false) {
+				throw new IOException("can't rename " + tmp);
+			}
+			mRedundantCount = 0;
+		} catch (IOException e) {
+			Log.e(TAG, "can't compact " + mJournal, e);
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ignored) {
+				}
+			}
+			tmp.delete();
+		}
+		openWriter(true);
+	}
+
+	/**
+	 * @return the records of every live entry, called with the lock held
+	 */
+	private ArrayList<String> snapshot() {
+		ArrayList<String> records = new ArrayList<String>(mById.size() + mById.size() / 2);
+		for (Entry entry : mById.values()) {
+			records.add(putRecord(entry));
+			if (entry.info != null)
+				records.add(infoRecord(entry));
+		}
+		return records;
+	}
+
+	/**
+	 * Write one record per line.
+	 */
+	private static void writeRecords(Writer writer, ArrayList<String> records) throws IOException {
+		for (String record : records) {
+			writer.write(record);
+			writer.write('\n');
+		}
+	}
+
+	private void openWriter(boolean append) {
+		try {
+			mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournal, append), "UTF-8"));
+		} catch (IOException e) {
+			Log.e(TAG, "can't open " + mJournal + ", index is kept in memory only", e);
+			mWriter = null;
+		}
+	}
+
+	private void closeWriter() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch (IOException e) {
+			}
+			mWriter = null;
+		}
+	}
+
+	private static String putRecord(Entry entry) {
+		return PUT + '\t' + entry.id + '\t' + entry.accessTime + '\t' + escape(entry.url) + '\t'
+				+ (entry.attribute == null ? NULL_ATTRIBUTE : escape(entry.attribute));
+	}
+
+	private static String infoRecord(Entry entry) {
+		ImageInfo info = entry.info;
+		return INFO + '\t' + entry.id + '\t' + info.width + '\t' + info.height + '\t'
+				+ (info.config == null ? NULL_ATTRIBUTE : info.config) + '\t' + info.orientation;
+	}
+
+	private static String key(String url, String attribute) {
+		return attribute == null ? url : url + '\n' + attribute;
+	}
+
+	private static String escape(String s) {
+		if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+			return s;
+		StringBuilder builder = new StringBuilder(s.length() + 8);
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '\\': builder.append("\\\\"); break;
+			case '\t': builder.append("\\t"); break;
+			case '\n': builder.append("\\n"); break;
+			case '\r': builder.append("\\r"); break;
+			default: builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0)
+			return s;
+		StringBuilder builder = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				c = s.charAt(++i);
+				if (c == 't')
+					c = '\t';
+				else if (c == 'n')
+					c = '\n';
+				else if (c == 'r')
+					c = '\r';
+			}
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	private static final class Entry {
+		final long id;
+		final String url;
+		final String attribute;
+		long accessTime;
+		ImageInfo info;
+
+		Entry(long id, String url, String attribute, long accessTime) {
+			this.id = id;
+			this.url = url;
+			this.attribute = attribute;
+			this.accessTime = accessTime;
+		}
+	}
+}
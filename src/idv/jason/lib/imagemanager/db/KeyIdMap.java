@@ -0,0 +1,177 @@
+package idv.jason.lib.imagemanager.db;
+
+/**
+ * Map from {@link ImageTable#keyHash} to row id in primitive arrays, 16 bytes
+ * a slot, so {@link SQLiteCacheIndex} answers lookups without a query.
+ *
+ * <p>
+ * Keys are spread over segments locked separately; each is an
+ * open-addressing table with linear probing that doubles once it is three
+ * quarters full. Two rows whose keys hash alike are stored as
+ * {@link #AMBIGUOUS}, the caller then has to ask the table.
+ * </p>
+ */
+final class KeyIdMap {
+	/** nothing stored, row ids start at 1 */
+	static final long ABSENT = 0;
+	/** more than one row has the hash */
+	static final long AMBIGUOUS = -2;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Segment[] mSegments;
+	private final int mSegmentMask;
+
+	KeyIdMap(int concurrencyLevel) {
+		int segments = 1;
+		while (segments < concurrencyLevel) {
+			segments <<= 1;
+		}
+		mSegments = new Segment[segments];
+		for (int i = 0; i < segments; ++i) {
+			mSegments[i] = new Segment();
+		}
+		mSegmentMask = segments - 1;
+	}
+
+	/**
+	 * @return the id, {@link #ABSENT} or {@link #AMBIGUOUS}
+	 */
+	long get(long hash) {
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			return segment.get(hash);
+		}
+	}
+
+	/**
+	 * Map {@code hash} to {@code id}, or to {@link #AMBIGUOUS} if it is
+	 * mapped to another id already.
+	 */
+	void put(long hash, long id) {
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			segment.put(hash, id);
+		}
+	}
+
+	/**
+	 * Unmap {@code hash} if it is mapped to {@code id}.
+	 */
+	void remove(long hash, long id) {
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			segment.remove(hash, id);
+		}
+	}
+
+	void clear() {
+		for (Segment segment : mSegments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Segment segment : mSegments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	private Segment segmentFor(long hash) {
+		return mSegments[spread(hash) & mSegmentMask];
+	}
+
+	private static int spread(long hash) {
+		int h = (int) (hash ^ (hash >>> 32));
+		return h ^ (h >>> 16);
+	}
+
+	private static final class Segment {
+		long[] hashes = new long[INITIAL_CAPACITY];
+		// ABSENT marks a free slot
+		long[] ids = new long[INITIAL_CAPACITY];
+		int size;
+
+		long get(long hash) {
+			int mask = ids.length - 1;
+			for (int i = slot(hash, mask);; i = (i + 1) & mask) {
+				if (ids[i] == ABSENT)
+					return ABSENT;
+				if (hashes[i] == hash)
+					return ids[i];
+			}
+		}
+
+		void put(long hash, long id) {
+			int mask = ids.length - 1;
+			int i = slot(hash, mask);
+			for (; ids[i] != ABSENT; i = (i + 1) & mask) {
+				if (hashes[i] == hash) {
+					if (ids[i] != id)
+						ids[i] = AMBIGUOUS;
+					return;
+				}
+			}
+			hashes[i] = hash;
+			ids[i] = id;
+			if (++size > ids.length / 4 * 3)
+				resize(ids.length * 2);
+		}
+
+		void remove(long hash, long id) {
+			int mask = ids.length - 1;
+			int i = slot(hash, mask);
+			for (;; i = (i + 1) & mask) {
+				if (ids[i] == ABSENT || (hashes[i] == hash && ids[i] != id))
+					return;
+				if (hashes[i] == hash)
+					break;
+			}
+			// shift later slots of the probe sequence back into the gap
+			int gap = i;
+			for (int j = (gap + 1) & mask; ids[j] != ABSENT; j = (j + 1) & mask) {
+				int home = slot(hashes[j], mask);
+				if (((j - home) & mask) >= ((j - gap) & mask)) {
+					hashes[gap] = hashes[j];
+					ids[gap] = ids[j];
+					gap = j;
+				}
+			}
+			ids[gap] = ABSENT;
+			size--;
+		}
+
+		void clear() {
+			hashes = new long[INITIAL_CAPACITY];
+			ids = new long[INITIAL_CAPACITY];
+			size = 0;
+		}
+
+		private void resize(int capacity) {
+			long[] oldHashes = hashes, oldIds = ids;
+			hashes = new long[capacity];
+			ids = new long[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldIds.length; ++i) {
+				if (oldIds[i] == ABSENT)
+					continue;
+				int j = slot(oldHashes[i], mask);
+				while (ids[j] != ABSENT) {
+					j = (j + 1) & mask;
+				}
+				hashes[j] = oldHashes[i];
+				ids[j] = oldIds[i];
+			}
+		}
+
+		private static int slot(long hash, int mask) {
+			return (int) ((hash * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+		}
+	}
+}
@@ -0,0 +1,528 @@
+package idv.jason.lib.imagemanager.db;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * {@link CacheIndex} in the {@link ImageTable}, the original index. Access
+ * times are written behind by an {@link AccessTimeRecorder}.
+ *
+ * <p>
+ * Rows are looked up by {@link ImageTable#COLUMN_KEY_HASH}, a compact
+ * integer index, with url and attribute compared to rule out collisions.
+ * A table upgraded from before version 4 has no hashes and may hold
+ * duplicate rows; they are hashed in batches and removed in the
+ * background, then the unique index is created. Until that is done lookups
+ * go by url.
+ * </p>
+ *
+ * <p>
+ * Once the table is keyed, ids are kept in a {@link KeyIdMap} from key hash
+ * to id, 16 to 32 bytes a row, that is preloaded in the background and
+ * kept up to date by every insert and removal. A lookup of a known key
+ * then never queries, and neither does a miss once the preload finished.
+ * The 64-bit hash is trusted as the key there; only hashes shared by two
+ * rows are looked up in the table.
+ * </p>
+ */
+public class SQLiteCacheIndex implements CacheIndex {
+	private static final String TAG = SQLiteCacheIndex.class.getSimpleName();
+
+	private static final int BACKFILL_BATCH = 500;
+	private static final int PRELOAD_BATCH = 2000;
+
+	private final SQLiteDatabase mDb;
+	private final ScheduledExecutorService mExecutor;
+	private final AccessTimeRecorder mAccessRecorder;
+
+	// every row has its key hash and the unique index exists
+	private volatile boolean mKeyed;
+	private long mMigrationStart;
+	private int mBackfilled;
+
+	private final KeyIdMap mIds = new KeyIdMap(8);
+	// every row is in mIds
+	private volatile boolean mPreloaded;
+	private long mPreloadedUpTo;
+	// mRemovals counts removals, so a row that was read before it was
+	// removed is not put into mIds after it was removed from there
+	private final Object mRemovalLock = new Object();
+	private int mRemovals;
+
+	// findOrInsert() of one key at a time, striped by key hash
+	private static final int INSERT_LOCKS = 32;
+	private final Object[] mInsertLocks = new Object[INSERT_LOCKS];
+
+	private final AtomicInteger mMemoryLookupCount = new AtomicInteger();
+	private final AtomicInteger mQueryCount = new AtomicInteger();
+	private final AtomicLong mQueryTimeNanos = new AtomicLong();
+
+	private final Runnable mMigrate = new Runnable() {
+		@Override
+		public void run() {
+			migrate();
+		}
+	};
+
+	private final Runnable mPreload = new Runnable() {
+		@Override
+		public void run() {
+			preload();
+		}
+	};
+
+	public SQLiteCacheIndex(SQLiteDatabase db, ScheduledExecutorService executor) {
+		mDb = db;
+		mExecutor = executor;
+		mAccessRecorder = new AccessTimeRecorder(db, executor);
+		for (int i = 0; i < INSERT_LOCKS; ++i) {
+			mInsertLocks[i] = new Object();
+		}
+		mExecutor.execute(mMigrate);
+	}
+
+	@Override
+	public long find(String url, String attribute) {
+		String attr = attribute == null ? "NULL" : attribute;
+		if (mKeyed == false)
+			return query(url, attr, 0);
+		long hash = ImageTable.keyHash(url, attr);
+		long id = mIds.get(hash);
+		if (id > 0 || (id == KeyIdMap.ABSENT && mPreloaded)) {
+			mMemoryLookupCount.incrementAndGet();
+			return id > 0 ? id : NO_ID;
+		}
+		int removals = removals();
+		id = query(url, attr, hash);
+		if (id != NO_ID)
+			remember(hash, id, removals);
+		return id;
+	}
+
+	/**
+	 * @param hash
+	 *            key hash to look up by, 0 to look up by url
+	 */
+	private long query(String url, String attr, long hash) {
+		long start = System.nanoTime();
+		long id = NO_ID;
+		Cursor c;
+		if (hash != 0) {
+			// the planner would pick the unique index, which holds every url
+			// and is many times the size of the hash index
+			c = mDb.query(ImageTable.TABLE_NAME + " INDEXED BY " + DatabaseHelper.INDEX_KEY_HASH,
+					new String[] { ImageTable.COLUMN_ID },
+					ImageTable.COLUMN_KEY_HASH + "=? AND " + ImageTable.COLUMN_IMAGE_URL + "=? AND "
+							+ ImageTable.COLUMN_ATTRIBUTE + "=?",
+					new String[] { Long.toString(hash), url, attr }, null, null, null);
+		} else {
+			c = mDb.query(ImageTable.TABLE_NAME, 
+					new String[] { ImageTable.COLUMN_ID }, 
+					ImageTable.COLUMN_IMAGE_URL + " =? AND " + ImageTable.COLUMN_ATTRIBUTE + " =? ",
+					new String[] { url, attr }, null, null,
+					ImageTable.DEFAULT_SORT_ORDER);
+		}
+		if(c != null) {
+			if(c.getCount() > 0) {
+				c.moveToFirst();
+				id = c.getLong(0);
+			}
+			c.close();
+		}
+		mQueryCount.incrementAndGet();
+		mQueryTimeNanos.addAndGet(System.nanoTime() - start);
+		return id;
+	}
+
+	@Override
+	public long findOrInsert(String url, String attribute) {
+		long id = find(url, attribute);
+		if (id != NO_ID)
+			return id;
+		String attr = attribute == null ? "NULL" : attribute;
+		long hash = ImageTable.keyHash(url, attr);
+		// two threads loading the same image must get the same row, and so
+		// the same file
+		synchronized (mInsertLocks[(int) hash & (INSERT_LOCKS - 1)]) {
+			id = find(url, attribute);
+			if (id != NO_ID)
+				return id;
+			int removals = removals();
+			SQLiteStatement insert = mDb.compileStatement("INSERT OR IGNORE INTO " + ImageTable.TABLE_NAME
+					+ "(" + ImageTable.COLUMN_IMAGE_URL + "," + ImageTable.COLUMN_ATTRIBUTE + ","
+					+ ImageTable.COLUMN_ACCESS_TIME + "," + ImageTable.COLUMN_KEY_HASH + ") VALUES (?,?,?,?)");
+			try {
+				insert.bindString(1, url);
+				insert.bindString(2, attr);
+				insert.bindLong(3, System.currentTimeMillis());
+				insert.bindLong(4, hash);
+				insert.execute();
+			} finally {
+				insert.close();
+			}
+			// the row inserted, or the one another process inserted first;
+			// executeInsert() does not tell which on older platforms
+			boolean keyed = mKeyed;
+			id = query(url, attr, keyed ? hash : 0);
+			if (id != NO_ID && keyed)
+				remember(hash, id, removals);
+		}
+		return id;
+	}
+
+	@Override
+	public void remove(long id) {
+		mAccessRecorder.remove(id);
+		long hash = keyHashOf(id);
+		mDb.delete(ImageTable.TABLE_NAME, ImageTable.COLUMN_ID + "=?", new String[] { Long.toString(id) });
+		synchronized (mRemovalLock) {
+			mRemovals++;
+			if (hash != 0)
+				mIds.remove(hash, id);
+		}
+	}
+
+	/**
+	 * @return the key hash of row {@code id}, 0 if it has none
+	 */
+	private long keyHashOf(long id) {
+		long hash = 0;
+		Cursor c = mDb.query(ImageTable.TABLE_NAME, new String[] { ImageTable.COLUMN_KEY_HASH },
+				ImageTable.COLUMN_ID + "=?", new String[] { Long.toString(id) }, null, null, null);
+		if (c != null) {
+			if (c.moveToFirst() && c.isNull(0) == false)
+				hash = c.getLong(0);
+			c.close();
+		}
+		return hash;
+	}
+
+	private int removals() {
+		synchronized (mRemovalLock) {
+			return mRemovals;
+		}
+	}
+
+	/**
+	 * Put a row read while {@link #removals()} was {@code removals} into
+	 * the map, unless a row was removed since.
+	 */
+	private void remember(long hash, long id, int removals) {
+		synchronized (mRemovalLock) {
+			if (mRemovals == removals)
+				mIds.put(hash, id);
+		}
+	}
+
+	@Override
+	public void recordAccess(long id) {
+		mAccessRecorder.record(id);
+	}
+
+	@Override
+	public Map<Long, Long> loadAccessTimes() {
+		HashMap<Long, Long> times = new HashMap<Long, Long>();
+		Cursor c = mDb.query(ImageTable.TABLE_NAME,
+				new String[] { ImageTable.COLUMN_ID, ImageTable.COLUMN_ACCESS_TIME },
+				null, null, null, null, null);
+		if (c != null) {
+			while (c.moveToNext()) {
+				times.put(c.getLong(0), c.getLong(1));
+			}
+			c.close();
+		}
+		return times;
+	}
+
+	@Override
+	public boolean contains(long id) {
+		boolean contains = false;
+		Cursor c = mDb.query(ImageTable.TABLE_NAME, new String[] { ImageTable.COLUMN_ID },
+				ImageTable.COLUMN_ID + "=?", new String[] { Long.toString(id) }, null, null, null);
+		if (c != null) {
+			contains = c.getCount() > 0;
+			c.close();
+		}
+		return contains;
+	}
+
+	@Override
+	public Map<Long, Long> loadAccessTimes(long afterId, int limit) {
+		LinkedHashMap<Long, Long> times = new LinkedHashMap<Long, Long>();
+		Cursor c = mDb.query(ImageTable.TABLE_NAME,
+				new String[] { ImageTable.COLUMN_ID, ImageTable.COLUMN_ACCESS_TIME },
+				ImageTable.COLUMN_ID + ">?", new String[] { Long.toString(afterId) }, null, null,
+				ImageTable.COLUMN_ID, Integer.toString(limit));
+		if (c != null) {
+			while (c.moveToNext()) {
+				times.put(c.getLong(0), c.getLong(1));
+			}
+			c.close();
+		}
+		return times;
+	}
+
+	@Override
+	public Map<Long, Long> findDuplicates(long fromId, long toId) {
+		HashMap<Long, Long> duplicates = new HashMap<Long, Long>();
+		if (mKeyed)
+			return duplicates;
+		Cursor c = mDb.rawQuery(duplicatesQuery(" WHERE a." + ImageTable.COLUMN_ID + ">? AND a."
+				+ ImageTable.COLUMN_ID + "<=?"), new String[] { Long.toString(fromId), Long.toString(toId) });
+		if (c != null) {
+			while (c.moveToNext()) {
+				duplicates.put(c.getLong(0), c.getLong(1));
+			}
+			c.close();
+		}
+		return duplicates;
+	}
+
+	/**
+	 * @return id and kept id of the rows matching {@code where} on table
+	 *         {@code a} that are not the row find() returns for their url and
+	 *         attribute
+	 */
+	private static String duplicatesQuery(String where) {
+		String kept = "SELECT " + ImageTable.COLUMN_ID + " FROM " + ImageTable.TABLE_NAME + " WHERE "
+				+ ImageTable.COLUMN_IMAGE_URL + "=a." + ImageTable.COLUMN_IMAGE_URL + " AND "
+				+ ImageTable.COLUMN_ATTRIBUTE + "=a." + ImageTable.COLUMN_ATTRIBUTE + " ORDER BY "
+				+ ImageTable.DEFAULT_SORT_ORDER + " LIMIT 1";
+		return "SELECT id, kept FROM (SELECT a." + ImageTable.COLUMN_ID + " AS id, (" + kept + ") AS kept FROM "
+				+ ImageTable.TABLE_NAME + " a" + where + ") WHERE id<>kept";
+	}
+
+	@Override
+	public void setImageInfo(long id, ImageInfo info) {
+		ContentValues cv = new ContentValues();
+		cv.put(ImageTable.COLUMN_WIDTH, info.width);
+		cv.put(ImageTable.COLUMN_HEIGHT, info.height);
+		cv.put(ImageTable.COLUMN_CONFIG, info.config);
+		cv.put(ImageTable.COLUMN_ORIENTATION, info.orientation);
+		mDb.update(ImageTable.TABLE_NAME, cv, ImageTable.COLUMN_ID + "=?", new String[] { Long.toString(id) });
+	}
+
+	@Override
+	public ImageInfo getImageInfo(long id) {
+		ImageInfo info = null;
+		Cursor c = mDb.query(ImageTable.TABLE_NAME,
+				new String[] { ImageTable.COLUMN_WIDTH, ImageTable.COLUMN_HEIGHT, ImageTable.COLUMN_CONFIG,
+						ImageTable.COLUMN_ORIENTATION },
+				ImageTable.COLUMN_ID + "=?", new String[] { Long.toString(id) }, null, null, null);
+		if (c != null) {
+			if (c.moveToFirst() && c.getInt(0) > 0 && c.getInt(1) > 0) {
+				info = new ImageInfo(c.getInt(0), c.getInt(1), c.getString(2), c.getInt(3));
+			}
+			c.close();
+		}
+		return info;
+	}
+
+	@Override
+	public void flushAsync() {
+		mAccessRecorder.flushAsync();
+	}
+
+	/**
+	 * The database stays open, it belongs to whoever passed it in.
+	 */
+	@Override
+	public void close() {
+		mAccessRecorder.close();
+	}
+
+	public AccessTimeRecorder getAccessTimeRecorder() {
+		return mAccessRecorder;
+	}
+
+	/**
+	 * Whether lookups go by key hash, false until an upgraded table was
+	 * migrated.
+	 */
+	public boolean isKeyed() {
+		return mKeyed;
+	}
+
+	/**
+	 * @return lookups answered from memory, without a query
+	 */
+	public int memoryLookupCount() {
+		return mMemoryLookupCount.get();
+	}
+
+	/**
+	 * @return lookups that queried the table, and the time they took
+	 */
+	public int queryCount() {
+		return mQueryCount.get();
+	}
+
+	public long queryTimeNanos() {
+		return mQueryTimeNanos.get();
+	}
+
+	/**
+	 * One step of bringing a table of an older version up to version 4: a
+	 * batch of rows is hashed and the next step queued behind other cache
+	 * work, until every row has its hash. Then the duplicates are removed
+	 * and the unique index created in one transaction, so no insert gets
+	 * in between.
+	 */
+	private void migrate() {
+		if (mMigrationStart == 0)
+			mMigrationStart = System.currentTimeMillis();
+		try {
+			int hashed = backfill(BACKFILL_BATCH);
+			mBackfilled += hashed;
+			if (hashed == BACKFILL_BATCH) {
+				mExecutor.execute(mMigrate);
+				return;
+			}
+			int removed = 0;
+			if (hasIndex(DatabaseHelper.INDEX_UNIQUE_KEY) == false) {
+				mDb.beginTransaction();
+				try {
+					mDb.execSQL("DELETE FROM " + ImageTable.TABLE_NAME + " WHERE " + ImageTable.COLUMN_ID
+							+ " IN (SELECT id FROM (" + duplicatesQuery("") + "))");
+					removed = changes();
+					DatabaseHelper.createUniqueKeyIndex(mDb);
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+			}
+			// the unique index starts with image_url
+			mDb.execSQL("DROP INDEX IF EXISTS " + DatabaseHelper.INDEX_URL);
+			mKeyed = true;
+			mExecutor.execute(mPreload);
+			if (mBackfilled > 0 || removed > 0) {
+				// files of removed rows are left to the disk cache and
+				// CacheReconciler
+				Log.i(TAG, "hashed " + mBackfilled + " rows, removed " + removed + " duplicates in "
+						+ (System.currentTimeMillis() - mMigrationStart) + " ms");
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "can't migrate " + ImageTable.TABLE_NAME + ", looking up by url", e);
+		}
+	}
+
+	/**
+	 * One step of filling {@link #mIds}: a batch of rows in id order, then
+	 * the next step queued behind other cache work. A batch read while a row
+	 * was removed is read again.
+	 */
+	private void preload() {
+		int removals = removals();
+		long[] ids = new long[PRELOAD_BATCH];
+		long[] hashes = new long[PRELOAD_BATCH];
+		int count = 0;
+		try {
+			Cursor c = mDb.query(ImageTable.TABLE_NAME, new String[] { ImageTable.COLUMN_ID,
+					ImageTable.COLUMN_KEY_HASH }, ImageTable.COLUMN_ID + ">?",
+					new String[] { Long.toString(mPreloadedUpTo) }, null, null, ImageTable.COLUMN_ID,
+					Integer.toString(PRELOAD_BATCH));
+			if (c != null) {
+				while (c.moveToNext()) {
+					ids[count] = c.getLong(0);
+					hashes[count++] = c.getLong(1);
+				}
+				c.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "can't preload ids, looking up in the table", e);
+			return;
+		}
+		synchronized (mRemovalLock) {
+			if (mRemovals != removals) {
+				mExecutor.execute(mPreload);
+				return;
+			}
+			for (int i = 0; i < count; ++i) {
+				mIds.put(hashes[i], ids[i]);
+			}
+		}
+		if (count == PRELOAD_BATCH) {
+			mPreloadedUpTo = ids[count - 1];
+			mExecutor.execute(mPreload);
+		} else {
+			mPreloaded = true;
+		}
+	}
+
+	/**
+	 * Hash up to {@code limit} rows that have no hash yet.
+	 *
+	 * @return rows hashed
+	 */
+	private int backfill(int limit) {
+		Cursor c = mDb.query(ImageTable.TABLE_NAME, new String[] { ImageTable.COLUMN_ID,
+				ImageTable.COLUMN_IMAGE_URL, ImageTable.COLUMN_ATTRIBUTE }, ImageTable.COLUMN_KEY_HASH
+				+ " IS NULL", null, null, null, null, Integer.toString(limit));
+		if (c == null)
+			return 0;
+		long[] ids = new long[c.getCount()];
+		long[] hashes = new long[ids.length];
+		try {
+			for (int i = 0; c.moveToNext(); ++i) {
+				ids[i] = c.getLong(0);
+				hashes[i] = ImageTable.keyHash(c.getString(1), c.isNull(2) ? "NULL" : c.getString(2));
+			}
+		} finally {
+			c.close();
+		}
+		if (ids.length == 0)
+			return 0;
+		SQLiteStatement update = mDb.compileStatement("UPDATE " + ImageTable.TABLE_NAME + " SET "
+				+ ImageTable.COLUMN_KEY_HASH + "=? WHERE " + ImageTable.COLUMN_ID + "=?");
+		mDb.beginTransaction();
+		try {
+			for (int i = 0; i < ids.length; ++i) {
+				update.bindLong(1, hashes[i]);
+				update.bindLong(2, ids[i]);
+				update.execute();
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			update.close();
+		}
+		return ids.length;
+	}
+
+	private boolean hasIndex(String name) {
+		Cursor c = mDb.rawQuery("SELECT 1 FROM sqlite_master WHERE type='index' AND name=?",
+				new String[] { name });
+		if (c == null)
+			return false;
+		try {
+			return c.getCount() > 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @return rows changed by the last statement
+	 */
+	private int changes() {
+		Cursor c = mDb.rawQuery("SELECT changes()", null);
+		if (c == null)
+			return 0;
+		try {
+			return c.moveToFirst() ? c.getInt(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+}
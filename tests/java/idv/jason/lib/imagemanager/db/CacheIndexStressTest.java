@@ -0,0 +1,186 @@
+package idv.jason.lib.imagemanager.db;
+
+import idv.jason.lib.imagemanager.cache.DiskCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Threads racing on the same keys through {@link CacheIndex#findOrInsert}
+ * and {@link DiskCache#edit} must end up with one entry and one file per
+ * key, whichever index is used.
+ *
+ * <p>
+ * Unverified: {@link #testSQLiteIndex} has never been run, it needs a
+ * device or emulator. {@link #testJournalIndex} has only been run on a
+ * plain JVM against stubbed Android classes.
+ * </p>
+ */
+public class CacheIndexStressTest extends AndroidTestCase {
+	private static final String DB_PREFIX = "stress.";
+	private static final String ATTRIBUTE = "w=100,h=100";
+	private static final int THREADS = 16;
+	private static final int KEYS = 500;
+	private static final int ROUNDS = 4;
+
+	private ScheduledExecutorService mExecutor;
+	private File mDirectory;
+	private File mJournal;
+	private DatabaseHelper mHelper;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mExecutor = Executors.newSingleThreadScheduledExecutor();
+		mDirectory = new File(getContext().getCacheDir(), "stress");
+		mJournal = new File(getContext().getCacheDir(), "stress.journal");
+		deleteAll(mDirectory);
+		mJournal.delete();
+		mDirectory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		if (mHelper != null)
+			mHelper.close();
+		for (String name : getContext().databaseList()) {
+			if (name.startsWith(DB_PREFIX))
+				getContext().deleteDatabase(name);
+		}
+		deleteAll(mDirectory);
+		mJournal.delete();
+		super.tearDown();
+	}
+
+	public void testSQLiteIndex() throws Exception {
+		Context context = new RenamingDelegatingContext(getContext(), DB_PREFIX);
+		mHelper = new DatabaseHelper(context);
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+		long[] ids = race(new SQLiteCacheIndex(db, mExecutor));
+
+		Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + ImageTable.TABLE_NAME, null);
+		try {
+			assertTrue(cursor.moveToFirst());
+			assertEquals(KEYS, cursor.getInt(0));
+		} finally {
+			cursor.close();
+		}
+		// a second index on the table finds the same rows
+		SQLiteCacheIndex reopened = new SQLiteCacheIndex(db, mExecutor);
+		for (int key = 0; key < KEYS; ++key) {
+			assertEquals(ids[key], reopened.find(url(key), ATTRIBUTE));
+		}
+	}
+
+	public void testJournalIndex() throws Exception {
+		JournalCacheIndex index = new JournalCacheIndex(mJournal, mDirectory, mExecutor);
+		long[] ids = race(index);
+
+		index.close();
+		// the journal replays to the same entries
+		JournalCacheIndex reopened = new JournalCacheIndex(mJournal, mDirectory, mExecutor);
+		assertEquals(KEYS, reopened.loadAccessTimes().size());
+		for (int key = 0; key < KEYS; ++key) {
+			assertEquals(ids[key], reopened.find(url(key), ATTRIBUTE));
+		}
+	}
+
+	/**
+	 * Every thread goes over all keys {@link #ROUNDS} times in its own order,
+	 * looking each up and writing its file.
+	 *
+	 * @return the id of each key
+	 */
+	private long[] race(final CacheIndex index) throws Exception {
+		final DiskCache diskCache = new DiskCache(mDirectory, 0, mExecutor, null, null);
+		final AtomicLongArray ids = new AtomicLongArray(KEYS);
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int t = 0; t < THREADS; ++t) {
+			final Random random = new Random(t);
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					List<Integer> order = new ArrayList<Integer>();
+					for (int key = 0; key < KEYS; ++key) {
+						order.add(key);
+					}
+					start.await();
+					for (int round = 0; round < ROUNDS; ++round) {
+						Collections.shuffle(order, random);
+						for (int key : order) {
+							long id = index.findOrInsert(url(key), ATTRIBUTE);
+							if (ids.compareAndSet(key, 0, id) == false && ids.get(key) != id)
+								failures.add(url(key) + ": " + ids.get(key) + " and " + id);
+							DiskCache.Editor editor = diskCache.edit(id);
+							try {
+								editor.newOutputStream().write(new byte[256]);
+								editor.commit();
+							} finally {
+								editor.abort();
+							}
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> future : futures) {
+				future.get(5, TimeUnit.MINUTES);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+
+		long[] result = new long[KEYS];
+		for (int key = 0; key < KEYS; ++key) {
+			result[key] = ids.get(key);
+			assertEquals(result[key], index.find(url(key), ATTRIBUTE));
+		}
+		assertEquals(KEYS, index.loadAccessTimes().size());
+
+		int files = 0;
+		for (int shard = 0; shard < DiskCache.SHARD_COUNT; ++shard) {
+			files += diskCache.listShard(shard).length;
+		}
+		assertEquals(KEYS, files);
+		return result;
+	}
+
+	private static String url(int key) {
+		return "http://example.com/image/" + key + ".jpg";
+	}
+
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Replays synthetic request traces through an LRU cache with and without
+ * {@link TinyLfuPolicy} and prints the hit ratios. Runs on a plain JVM, it
+ * only needs the policy classes:
+ *
+ * <pre>
+ * javac -d /tmp/sim src/idv/jason/lib/imagemanager/cache/AdmissionPolicy.java \
+ *     src/idv/jason/lib/imagemanager/cache/FrequencySketch.java \
+ *     src/idv/jason/lib/imagemanager/cache/TinyLfuPolicy.java \
+ *     tools/idv/jason/lib/imagemanager/cache/AdmissionSimulator.java
+ * java -cp /tmp/sim idv.jason.lib.imagemanager.cache.AdmissionSimulator
+ * </pre>
+ *
+ * <p>
+ * The cache admits like {@code LongLruCache.put}: every lookup is
+ * recorded, and a missing key only gets into a full cache if the policy
+ * prefers it over the least recently used entry. Hit ratios are given for
+ * all requests and for requests of the {@link #HOT_KEYS} most popular keys.
+ * </p>
+ */
+public class AdmissionSimulator {
+	private static final int CACHE_SIZE = 200;
+	private static final int KEYS = 20000;
+	private static final int REQUESTS = 1000000;
+	private static final double ZIPF_SKEW = 0.9;
+	// the most popular keys, the images every screen uses
+	private static final int HOT_KEYS = CACHE_SIZE / 10;
+	// keys of one-off requests, never repeated
+	private static final long SCAN_BASE = 1L << 40;
+
+	private interface Trace {
+		/**
+		 * @return the next key, {@link AdmissionSimulator#SCAN_BASE} and
+		 *         above for keys requested once
+		 */
+		long next();
+	}
+
+	private static class Cache {
+		private final int mMaxSize;
+		private final AdmissionPolicy mPolicy;
+		private final LinkedHashMap<Long, Boolean> mMap = new LinkedHashMap<Long, Boolean>(0, 0.75f, true);
+		long hits;
+		long requests;
+		long hotHits;
+		long hotRequests;
+
+		Cache(int maxSize, AdmissionPolicy policy) {
+			mMaxSize = maxSize;
+			mPolicy = policy;
+		}
+
+		void request(long key, boolean hot) {
+			long hash = FrequencySketch.spread(Long.valueOf(key).hashCode());
+			requests++;
+			if (hot)
+				hotRequests++;
+			if (mPolicy != null)
+				mPolicy.record(hash);
+			if (mMap.get(key) != null) {
+				hits++;
+				if (hot)
+					hotHits++;
+				return;
+			}
+			// miss: load and put
+			if (mPolicy != null && mMap.size() >= mMaxSize) {
+				long victim = mMap.keySet().iterator().next();
+				if (mPolicy.admit(hash, FrequencySketch.spread(Long.valueOf(victim).hashCode())) == false)
+					return;
+			}
+			mMap.put(key, Boolean.TRUE);
+			if (mMap.size() > mMaxSize) {
+				Iterator<Long> eldest = mMap.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+
+		static String ratio(long hits, long requests) {
+			return requests == 0 ? "-" : String.format("%5.1f%%", 100.0 * hits / requests);
+		}
+	}
+
+	/**
+	 * Keys drawn from a Zipf distribution over {@link #KEYS} keys.
+	 */
+	private static class ZipfTrace implements Trace {
+		private final double[] mCumulative = new double[KEYS];
+		private final Random mRandom;
+
+		ZipfTrace(Random random) {
+			mRandom = random;
+			double sum = 0;
+			for (int i = 0; i < KEYS; ++i) {
+				sum += 1 / Math.pow(i + 1, ZIPF_SKEW);
+				mCumulative[i] = sum;
+			}
+			for (int i = 0; i < KEYS; ++i) {
+				mCumulative[i] /= sum;
+			}
+		}
+
+		@Override
+		public long next() {
+			int i = Arrays.binarySearch(mCumulative, mRandom.nextDouble());
+			return i >= 0 ? i : Math.min(-i - 1, KEYS - 1);
+		}
+	}
+
+	/**
+	 * A Zipf trace interrupted by scans: every {@code period} requests,
+	 * {@code length} keys that are never asked for again, e.g. a fling
+	 * through a long list of thumbnails.
+	 */
+	private static class ScanTrace implements Trace {
+		private final Trace mBase;
+		private final int mPeriod;
+		private final int mLength;
+		private long mNextScanKey = SCAN_BASE;
+		private int mPosition;
+
+		ScanTrace(Trace base, int period, int length) {
+			mBase = base;
+			mPeriod = period;
+			mLength = length;
+		}
+
+		@Override
+		public long next() {
+			int position = mPosition++ % (mPeriod + mLength);
+			return position < mPeriod ? mBase.next() : mNextScanKey++;
+		}
+	}
+
+	/**
+	 * The same keys over and over in a loop a bit larger than the cache,
+	 * mixed into a Zipf trace; LRU misses every one of them.
+	 */
+	private static class LoopTrace implements Trace {
+		private final Trace mBase;
+		private final int mLoopSize;
+		private final Random mRandom;
+		private long mNext;
+
+		LoopTrace(Trace base, int loopSize, Random random) {
+			mBase = base;
+			mLoopSize = loopSize;
+			mRandom = random;
+		}
+
+		@Override
+		public long next() {
+			if (mRandom.nextBoolean())
+				return mBase.next();
+			return SCAN_BASE / 2 + (mNext++ % mLoopSize);
+		}
+	}
+
+	private static void run(String name, Trace lruTrace, Trace tinyLfuTrace) {
+		Cache lru = new Cache(CACHE_SIZE, null);
+		Cache tinyLfu = new Cache(CACHE_SIZE, new TinyLfuPolicy(CACHE_SIZE));
+		replay(lru, lruTrace);
+		replay(tinyLfu, tinyLfuTrace);
+		System.out.println(String.format("%-28s %8s %8s %10s %10s", name, Cache.ratio(lru.hits, lru.requests),
+				Cache.ratio(tinyLfu.hits, tinyLfu.requests), Cache.ratio(lru.hotHits, lru.hotRequests),
+				Cache.ratio(tinyLfu.hotHits, tinyLfu.hotRequests)));
+	}
+
+	private static void replay(Cache cache, Trace trace) {
+		for (int i = 0; i < REQUESTS; ++i) {
+			long key = trace.next();
+			cache.request(key, key < HOT_KEYS);
+		}
+	}
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%d requests, cache of %d entries, Zipf %.1f over %d keys", REQUESTS,
+				CACHE_SIZE, ZIPF_SKEW, KEYS));
+		System.out.println(String.format("%-28s %8s %8s %10s %10s", "trace", "LRU", "TinyLFU", "hot LRU",
+				"hot TinyLFU"));
+		// each cache replays its own copy of a trace seeded alike
+		run("zipf", new ZipfTrace(new Random(1)), new ZipfTrace(new Random(1)));
+		run("zipf + scans 1000/1000", new ScanTrace(new ZipfTrace(new Random(2)), 1000, 1000), new ScanTrace(
+				new ZipfTrace(new Random(2)), 1000, 1000));
+		run("zipf + scans 200/2000", new ScanTrace(new ZipfTrace(new Random(3)), 200, 2000), new ScanTrace(
+				new ZipfTrace(new Random(3)), 200, 2000));
+		run("zipf + loop of 300", new LoopTrace(new ZipfTrace(new Random(4)), 300, new Random(5)), new LoopTrace(
+				new ZipfTrace(new Random(4)), 300, new Random(5)));
+	}
+}
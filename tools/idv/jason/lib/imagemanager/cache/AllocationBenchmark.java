@@ -0,0 +1,107 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import idv.jason.lib.imagemanager.LruCache;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes allocated by memory cache hits: the old path, which
+ * turned the row id into a {@code String} key for an
+ * {@code LruCache<String, Bitmap>}, against {@link LongLruCache} looked up
+ * by the row id itself. Values are plain objects standing in for bitmaps.
+ * Needs a HotSpot JVM for the per-thread allocation counter:
+ *
+ * <pre>
+ * javac -d /tmp/bench src/idv/jason/lib/imagemanager/LruCache.java \
+ *     src/idv/jason/lib/imagemanager/cache/AdmissionPolicy.java \
+ *     src/idv/jason/lib/imagemanager/cache/MemoryCache.java \
+ *     src/idv/jason/lib/imagemanager/cache/LongLruCache.java \
+ *     tools/idv/jason/lib/imagemanager/cache/AllocationBenchmark.java
+ * java -cp /tmp/bench idv.jason.lib.imagemanager.cache.AllocationBenchmark
+ * </pre>
+ */
+public class AllocationBenchmark {
+	private static final int ENTRIES = 1000;
+	// row ids as the database hands them out, well past the Long cache
+	private static final long FIRST_ID = 100000;
+	private static final int LOOKUPS = 10000000;
+	private static final int ROUNDS = 3;
+
+	private interface Lookup {
+		/**
+		 * @return the number of hits, so the lookups are not optimized away
+		 */
+		int run(int lookups);
+	}
+
+	private static final com.sun.management.ThreadMXBean sThreads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private static Lookup stringKeyed() {
+		final LruCache<String, Object> cache = new LruCache<String, Object>(ENTRIES);
+		for (long id = FIRST_ID; id < FIRST_ID + ENTRIES; ++id) {
+			cache.put(Long.toString(id), new Object());
+		}
+		return new Lookup() {
+			@Override
+			public int run(int lookups) {
+				int hits = 0;
+				for (int i = 0; i < lookups; ++i) {
+					long id = FIRST_ID + (i % ENTRIES);
+					if (cache.get(Long.toString(id)) != null)
+						hits++;
+				}
+				return hits;
+			}
+		};
+	}
+
+	private static Lookup longKeyed() {
+		final LongLruCache<Object> cache = new LongLruCache<Object>(ENTRIES);
+		for (long id = FIRST_ID; id < FIRST_ID + ENTRIES; ++id) {
+			cache.put(id, new Object());
+		}
+		return new Lookup() {
+			@Override
+			public int run(int lookups) {
+				int hits = 0;
+				for (int i = 0; i < lookups; ++i) {
+					long id = FIRST_ID + (i % ENTRIES);
+					if (cache.get(id) != null)
+						hits++;
+				}
+				return hits;
+			}
+		};
+	}
+
+	private static void measure(String name, Lookup lookup) {
+		// warm up so the JIT has compiled the loop before counting
+		lookup.run(LOOKUPS);
+		long threadId = Thread.currentThread().getId();
+		for (int round = 0; round < ROUNDS; ++round) {
+			long bytes = sThreads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			int hits = lookup.run(LOOKUPS);
+			long elapsed = System.nanoTime() - start;
+			bytes = sThreads.getThreadAllocatedBytes(threadId) - bytes;
+			if (hits != LOOKUPS)
+				throw new IllegalStateException(name + ": " + (LOOKUPS - hits) + " misses");
+			System.out.println(String.format("%-34s %10.1f %10.1f", name, (double) bytes / LOOKUPS, (double) elapsed
+					/ LOOKUPS));
+		}
+	}
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%d hits over %d entries", LOOKUPS, ENTRIES));
+		System.out.println(String.format("%-34s %10s %10s", "cache", "bytes/hit", "ns/hit"));
+		measure("LruCache<String> + Long.toString", stringKeyed());
+		measure("LongLruCache", longKeyed());
+	}
+}
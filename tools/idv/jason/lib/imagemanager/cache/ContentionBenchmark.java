@@ -0,0 +1,150 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import idv.jason.lib.imagemanager.LruCache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures lookup throughput of {@link LongLruCache} against the
+ * synchronized {@link LruCache} with several threads hitting the same small
+ * set of keys, the way list adapters ask for the thumbnails on screen. Runs
+ * on a plain JVM:
+ *
+ * <pre>
+ * javac -d /tmp/bench src/idv/jason/lib/imagemanager/LruCache.java \
+ *     src/idv/jason/lib/imagemanager/cache/AdmissionPolicy.java \
+ *     src/idv/jason/lib/imagemanager/cache/MemoryCache.java \
+ *     src/idv/jason/lib/imagemanager/cache/LongLruCache.java \
+ *     tools/idv/jason/lib/imagemanager/cache/ContentionBenchmark.java
+ * java -cp /tmp/bench idv.jason.lib.imagemanager.cache.ContentionBenchmark
+ * </pre>
+ *
+ * <p>
+ * Every key fits in the cache, so lookups are hits; one run in
+ * {@link #PUT_PERCENT} also replaces entries to keep writers in the mix.
+ * Results are millions of operations per second, summed over all threads.
+ * </p>
+ */
+public class ContentionBenchmark {
+	private static final int KEYS = 1000;
+	private static final int PUT_PERCENT = 5;
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+	private static final long WARMUP_MILLIS = 1000;
+	private static final long RUN_MILLIS = 2000;
+	// precomputed per thread so the loop measures the cache, not Random
+	private static final int TRACE_LENGTH = 1 << 16;
+
+	private interface Cache {
+		Object get(long key);
+
+		void put(long key, Object value);
+	}
+
+	private static Cache newLongLruCache() {
+		final LongLruCache<Object> cache = new LongLruCache<Object>(KEYS * 2);
+		return new Cache() {
+			@Override
+			public Object get(long key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(long key, Object value) {
+				cache.put(key, value);
+			}
+		};
+	}
+
+	private static Cache newLruCache() {
+		final LruCache<Long, Object> cache = new LruCache<Long, Object>(KEYS * 2);
+		return new Cache() {
+			@Override
+			public Object get(long key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(long key, Object value) {
+				cache.put(key, value);
+			}
+		};
+	}
+
+	/**
+	 * @return million operations per second
+	 */
+	private static double run(final Cache cache, int threads, final boolean writes) throws InterruptedException {
+		for (long key = 0; key < KEYS; ++key) {
+			cache.put(key, Long.valueOf(key));
+		}
+		final AtomicBoolean measuring = new AtomicBoolean();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong operations = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; ++t) {
+			final long[] trace = new long[TRACE_LENGTH];
+			final boolean[] put = new boolean[TRACE_LENGTH];
+			Random random = new Random(t);
+			for (int i = 0; i < TRACE_LENGTH; ++i) {
+				// squared to favour the first keys
+				double r = random.nextDouble();
+				trace[i] = (long) (r * r * KEYS);
+				put[i] = writes && random.nextInt(100) < PUT_PERCENT;
+			}
+			new Thread() {
+				@Override
+				public void run() {
+					Object value = Boolean.TRUE;
+					long count = 0;
+					int i = 0;
+					boolean counting = false;
+					while (stop.get() == false) {
+						for (int n = 0; n < 1024; ++n) {
+							long key = trace[i];
+							if (put[i])
+								cache.put(key, value);
+							else if (cache.get(key) == null)
+								throw new IllegalStateException("miss on " + key);
+							i = (i + 1) & (TRACE_LENGTH - 1);
+						}
+						if (counting)
+							count += 1024;
+						else
+							counting = measuring.get();
+					}
+					operations.addAndGet(count);
+					done.countDown();
+				}
+			}.start();
+		}
+		Thread.sleep(WARMUP_MILLIS);
+		measuring.set(true);
+		long start = System.nanoTime();
+		Thread.sleep(RUN_MILLIS);
+		stop.set(true);
+		long elapsed = System.nanoTime() - start;
+		done.await();
+		return operations.get() * 1000.0 / elapsed;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		System.out.println(String.format("%d keys, all resident, %d available processors", KEYS, Runtime
+				.getRuntime().availableProcessors()));
+		System.out.println(String.format("%-8s %14s %14s %14s %14s", "threads", "LruCache", "LongLruCache",
+				"LruCache " + PUT_PERCENT + "%w", "LongLru " + PUT_PERCENT + "%w"));
+		for (int threads : THREADS) {
+			System.out.println(String.format("%-8d %14.1f %14.1f %14.1f %14.1f", threads, run(newLruCache(),
+					threads, false), run(newLongLruCache(), threads, false), run(newLruCache(), threads, true), run(
+					newLongLruCache(), threads, true)));
+		}
+	}
+}
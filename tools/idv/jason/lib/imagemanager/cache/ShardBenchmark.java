@@ -0,0 +1,142 @@
+/**
+ * Copyright 2011 Jason Peng
+ * This program is free software under the GNU General Public License.
+ * If not, see <http://www.gnu.org/licenses/gpl.txt>.
+ */
+
+package idv.jason.lib.imagemanager.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times creating and looking up cache files at 1k, 10k and 100k files, all
+ * in one directory as the cache used to keep them and sharded by
+ * {@link DiskCache}. A lookup is the {@code exists()} check made before
+ * every decode, for files that are there and files that are not. Results
+ * depend on the file system the temporary directory is on, pass another
+ * directory as the first argument to measure e.g. an sdcard mount:
+ *
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-19/android.jar -sourcepath src -d /tmp/bench \
+ *     tools/idv/jason/lib/imagemanager/cache/ShardBenchmark.java
+ * java -cp /tmp/bench idv.jason.lib.imagemanager.cache.ShardBenchmark [directory]
+ * </pre>
+ */
+public class ShardBenchmark {
+	private static final int[] SIZES = { 1000, 10000, 100000 };
+	private static final int LOOKUPS = 200000;
+	private static final byte[] CONTENT = new byte[64];
+
+	private interface Layout {
+		File fileForWrite(long id);
+
+		File file(long id);
+	}
+
+	private static Layout flat(final File directory) {
+		directory.mkdirs();
+		return new Layout() {
+			@Override
+			public File fileForWrite(long id) {
+				return file(id);
+			}
+
+			@Override
+			public File file(long id) {
+				return new File(directory, Long.toString(id));
+			}
+		};
+	}
+
+	private static Layout sharded(File directory, ExecutorService executor) throws Exception {
+		directory.mkdirs();
+		final DiskCache cache = new DiskCache(directory, 0, executor, null, null);
+		// let the first scan finish so lookups no longer look for flat files
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+		return new Layout() {
+			@Override
+			public File fileForWrite(long id) {
+				return cache.getFileForWrite(id);
+			}
+
+			@Override
+			public File file(long id) {
+				return cache.getFile(id);
+			}
+		};
+	}
+
+	private static void run(String name, Layout layout, int size) throws IOException {
+		long start = System.nanoTime();
+		for (long id = 1; id <= size; ++id) {
+			FileOutputStream out = new FileOutputStream(layout.fileForWrite(id));
+			try {
+				out.write(CONTENT);
+			} finally {
+				out.close();
+			}
+		}
+		double create = (double) (System.nanoTime() - start) / size / 1000;
+
+		Random random = new Random(size);
+		long[] present = new long[LOOKUPS];
+		long[] absent = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; ++i) {
+			present[i] = 1 + random.nextInt(size);
+			absent[i] = size + 1 + random.nextInt(size);
+		}
+		double hit = lookups(layout, present, true);
+		double miss = lookups(layout, absent, false);
+		System.out.println(String.format("%-8d %-8s %10.1f %10.2f %10.2f", size, name, create, hit, miss));
+	}
+
+	/**
+	 * @return microseconds per lookup
+	 */
+	private static double lookups(Layout layout, long[] ids, boolean exist) {
+		long start = System.nanoTime();
+		for (long id : ids) {
+			if (layout.file(id).exists() != exist)
+				throw new IllegalStateException(id + " exists: " + !exist);
+		}
+		return (double) (System.nanoTime() - start) / ids.length / 1000;
+	}
+
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		File base = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "shard-benchmark");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		System.out.println(String.format("%-8s %-8s %10s %10s %10s", "files", "layout", "create us", "hit us",
+				"miss us"));
+		try {
+			for (int size : SIZES) {
+				deleteAll(base);
+				run("flat", flat(new File(base, "flat")), size);
+				run("sharded", sharded(new File(base, "sharded"), executor), size);
+			}
+		} finally {
+			deleteAll(base);
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+}
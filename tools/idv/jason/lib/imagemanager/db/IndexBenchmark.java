@@ -0,0 +1,107 @@
+package idv.jason.lib.imagemanager.db;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link JournalCacheIndex} with 10k and 100k entries: the time to
+ * read the journal when the index is opened, and the latency of
+ * {@link CacheIndex#find} for known and unknown keys. The SQLite side of the
+ * comparison, the query {@code getImageId} used to run, is measured by
+ * {@code tools/sqlite_index_benchmark.py} with the same urls.
+ *
+ * <p>
+ * The index only needs Android classes to log I/O errors, so it compiles
+ * against android.jar and runs on a plain JVM:
+ * </p>
+ *
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-19/android.jar -sourcepath src -d /tmp/bench \
+ *     tools/idv/jason/lib/imagemanager/db/IndexBenchmark.java
+ * java -cp /tmp/bench idv.jason.lib.imagemanager.db.IndexBenchmark
+ * </pre>
+ */
+public class IndexBenchmark {
+	private static final int[] SIZES = { 10000, 100000 };
+	private static final String ATTRIBUTE = "w=100,h=100";
+	private static final int LOOKUPS = 1000000;
+	private static final int ROUNDS = 3;
+
+	static String url(int i) {
+		return "http://images.example.com/photos/" + (i * 7919 % 100003) + "/original/" + i + ".jpg";
+	}
+
+	private static void run(File directory, int size) throws Exception {
+		File journal = new File(directory, "index.journal");
+		File cacheDirectory = new File(directory, "cache");
+		cacheDirectory.mkdirs();
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			JournalCacheIndex index = new JournalCacheIndex(journal, cacheDirectory, executor);
+			for (int i = 0; i < size; ++i) {
+				index.findOrInsert(url(i), ATTRIBUTE);
+			}
+			index.close();
+
+			long start = System.nanoTime();
+			index = new JournalCacheIndex(journal, cacheDirectory, executor);
+			// waits for the journal to be read
+			index.find(url(0), ATTRIBUTE);
+			long load = System.nanoTime() - start;
+
+			// the keys are built up front, as callers already hold the url
+			String[] hits = new String[4096];
+			String[] misses = new String[hits.length];
+			Random random = new Random(size);
+			for (int i = 0; i < hits.length; ++i) {
+				hits[i] = url(random.nextInt(size));
+				misses[i] = url(size + random.nextInt(size));
+			}
+			for (int round = 0; round < ROUNDS; ++round) {
+				double hit = lookups(index, hits, true);
+				double miss = lookups(index, misses, false);
+				System.out.println(String.format("%-8d %10.1f %10.0f %10.0f", size, load / 1e6, hit, miss));
+			}
+			index.close();
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return nanoseconds per lookup
+	 */
+	private static double lookups(CacheIndex index, String[] urls, boolean known) {
+		long start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; ++i) {
+			long id = index.find(urls[i & (urls.length - 1)], ATTRIBUTE);
+			if ((id != CacheIndex.NO_ID) != known)
+				throw new IllegalStateException(urls[i & (urls.length - 1)] + ": " + id);
+		}
+		return (double) (System.nanoTime() - start) / LOOKUPS;
+	}
+
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "index-benchmark");
+		System.out.println(String.format("%-8s %10s %10s %10s", "entries", "load ms", "hit ns", "miss ns"));
+		for (int size : SIZES) {
+			deleteAll(directory);
+			run(directory, size);
+		}
+		deleteAll(directory);
+	}
+}
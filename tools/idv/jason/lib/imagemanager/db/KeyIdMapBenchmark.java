@@ -0,0 +1,84 @@
+package idv.jason.lib.imagemanager.db;
+
+import java.util.Random;
+
+/**
+ * Measures the in-memory lookup {@link SQLiteCacheIndex} does before it
+ * queries: hashing url and attribute, then {@link KeyIdMap#get}, at 100k
+ * entries. The indexed SQLite lookup it saves is measured on the same urls
+ * by the schema section of {@code tools/sqlite_index_benchmark.py}.
+ *
+ * <pre>
+ * javac -d /tmp/bench src/idv/jason/lib/imagemanager/db/KeyIdMap.java \
+ *     tools/idv/jason/lib/imagemanager/db/KeyIdMapBenchmark.java
+ * java -cp /tmp/bench idv.jason.lib.imagemanager.db.KeyIdMapBenchmark
+ * </pre>
+ */
+public class KeyIdMapBenchmark {
+	private static final int SIZE = 100000;
+	private static final String ATTRIBUTE = "w=100,h=100";
+	private static final int LOOKUPS = 10000000;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * Keep in sync with {@code typical_url} of the SQLite benchmark.
+	 */
+	static String url(int i) {
+		return String.format("https://photos.cdn.example.com/images/%08x/%08x/%dx%d/img_%07d.jpg"
+				+ "?quality=85&format=progressive", i * 2654435761L % (1L << 32), i * 40503L % (1L << 32),
+				640 + i % 7 * 160, 480 + i % 5 * 120, i);
+	}
+
+	/**
+	 * {@link ImageTable#keyHash}, which can't be called here: loading
+	 * ImageTable parses its content Uri.
+	 */
+	static long keyHash(String url, String attribute) {
+		long hash = 0xcbf29ce484222325L;
+		hash = hash(hash, url);
+		hash = (hash ^ '\n') * 0x100000001b3L;
+		return hash(hash, attribute);
+	}
+
+	private static long hash(long hash, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	public static void main(String[] args) {
+		KeyIdMap map = new KeyIdMap(8);
+		for (int i = 0; i < SIZE; ++i) {
+			map.put(keyHash(url(i), ATTRIBUTE), i + 1);
+		}
+		String[] urls = new String[4096];
+		Random random = new Random(SIZE);
+		for (int i = 0; i < urls.length; ++i) {
+			urls[i] = url(random.nextInt(SIZE));
+		}
+		System.out.println(String.format("%d entries, %d-character urls", SIZE, urls[0].length()));
+		System.out.println(String.format("%-24s %10s", "lookup", "ns"));
+		for (int round = 0; round < ROUNDS; ++round) {
+			long start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; ++i) {
+				if (map.get(keyHash(urls[i & (urls.length - 1)], ATTRIBUTE)) <= 0)
+					throw new IllegalStateException(urls[i & (urls.length - 1)]);
+			}
+			double withHash = (double) (System.nanoTime() - start) / LOOKUPS;
+
+			long[] hashes = new long[urls.length];
+			for (int i = 0; i < urls.length; ++i) {
+				hashes[i] = keyHash(urls[i], ATTRIBUTE);
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; ++i) {
+				if (map.get(hashes[i & (hashes.length - 1)]) <= 0)
+					throw new IllegalStateException(urls[i & (urls.length - 1)]);
+			}
+			double mapOnly = (double) (System.nanoTime() - start) / LOOKUPS;
+			System.out.println(String.format("%-24s %10.1f", "hash + KeyIdMap.get", withHash));
+			System.out.println(String.format("%-24s %10.1f", "KeyIdMap.get", mapOnly));
+		}
+	}
+}
@@ -0,0 +1,154 @@
+#!/usr/bin/env python3
+# Copyright 2011 Jason Peng
+# This program is free software under the GNU General Public License.
+# If not, see <http://www.gnu.org/licenses/gpl.txt>.
+"""Lookup latency of the IMAGES table with the SQLite engine of the host.
+
+lookup: the SQLite counterpart of tools/idv/jason/lib/imagemanager/db/
+    IndexBenchmark.java. The same urls are looked up with the query
+    getImageId ran against the version 1 schema (url index, sorted by
+    access time), at 10k and 100k rows.
+schema: 100k rows of typical urls, looked up the way the version 3 schema
+    did (url index, sorted by access time) and through the two version 4
+    indexes: the unique (image_url, attribute) one and the key_hash one
+    SQLiteCacheIndex forces. Also prints how long each version 4 index
+    takes to build and how big it is.
+
+Times include the Python call overhead, a few hundred nanoseconds, and
+none of the Android cursor overhead.
+
+    python3 tools/sqlite_index_benchmark.py [lookup] [schema]
+"""
+
+import os
+import random
+import sqlite3
+import sys
+import tempfile
+import time
+
+ATTRIBUTE = "w=100,h=100"
+LOOKUPS = 100000
+
+
+def url(i):
+    # keep in sync with IndexBenchmark.url
+    return "http://images.example.com/photos/%d/original/%d.jpg" % (i * 7919 % 100003, i)
+
+
+def typical_url(i):
+    """About 100 characters, like the urls of a photo CDN.
+
+    Keep in sync with KeyIdMapBenchmark.url.
+    """
+    return ("https://photos.cdn.example.com/images/%08x/%08x/%dx%d/img_%07d.jpg?quality=85&format=progressive"
+            % (i * 2654435761 % (1 << 32), i * 40503 % (1 << 32), 640 + i % 7 * 160, 480 + i % 5 * 120, i))
+
+
+def key_hash(url, attribute):
+    """ImageTable.keyHash: 64-bit FNV-1a of url, a newline and attribute."""
+    h = 0xcbf29ce484222325
+    for c in url + "\n" + attribute:
+        h = ((h ^ ord(c)) * 0x100000001b3) & 0xffffffffffffffff
+    # SQLite integers are signed
+    return h - (1 << 64) if h >= 1 << 63 else h
+
+
+def create_v1(db):
+    db.execute("CREATE TABLE IMAGES (id INTEGER PRIMARY KEY, image_url TEXT NOT NULL, url TEXT,"
+               " status TEXT, access_time TEXT, attribute TEXT)")
+    db.execute("CREATE INDEX IDX_IMAGES ON IMAGES(image_url)")
+
+
+def fill(db, size):
+    now = int(time.time() * 1000)
+    db.executemany("INSERT INTO IMAGES (image_url, access_time, attribute) VALUES (?, ?, ?)",
+                   ((url(i), str(now - i), ATTRIBUTE) for i in range(size)))
+    db.commit()
+
+
+def lookups(db, sql, keys, known):
+    """Nanoseconds per lookup."""
+    start = time.perf_counter_ns()
+    for i in range(LOOKUPS):
+        row = db.execute(sql, keys[i % len(keys)]).fetchone()
+        if (row is not None) != known:
+            raise AssertionError(keys[i % len(keys)])
+    return (time.perf_counter_ns() - start) / LOOKUPS
+
+
+V1_FIND = "SELECT id FROM IMAGES WHERE image_url =? AND attribute =? ORDER BY access_time DESC"
+V3_FIND = ("SELECT id FROM IMAGES INDEXED BY IDX_IMAGES WHERE image_url =? AND attribute =?"
+           " ORDER BY access_time DESC")
+V4_UNIQUE_FIND = "SELECT id FROM IMAGES INDEXED BY UIDX_IMAGES_KEY WHERE image_url =? AND attribute =?"
+V4_HASH_FIND = ("SELECT id FROM IMAGES INDEXED BY IDX_IMAGES_key_hash"
+                " WHERE key_hash=? AND image_url=? AND attribute=?")
+
+
+def pages(db):
+    return db.execute("PRAGMA page_count").fetchone()[0] * db.execute("PRAGMA page_size").fetchone()[0]
+
+
+def create_index(db, sql):
+    """Milliseconds to build, bytes it takes."""
+    before = pages(db)
+    start = time.perf_counter_ns()
+    db.execute(sql)
+    db.commit()
+    return (time.perf_counter_ns() - start) / 1e6, pages(db) - before
+
+
+def schema():
+    size = 100000
+    with tempfile.TemporaryDirectory() as directory:
+        db = sqlite3.connect(os.path.join(directory, "imagemanager.db"))
+        db.execute("CREATE TABLE IMAGES (id INTEGER PRIMARY KEY AUTOINCREMENT, image_url TEXT NOT NULL,"
+                   " url TEXT, status TEXT, access_time INTEGER, attribute TEXT, width INTEGER DEFAULT 0,"
+                   " height INTEGER DEFAULT 0, config TEXT, orientation INTEGER DEFAULT 0, key_hash INTEGER)")
+        now = int(time.time() * 1000)
+        db.executemany("INSERT INTO IMAGES (image_url, access_time, attribute, key_hash) VALUES (?, ?, ?, ?)",
+                       ((typical_url(i), now - i, ATTRIBUTE, key_hash(typical_url(i), ATTRIBUTE))
+                        for i in range(size)))
+        db.commit()
+        url_build = create_index(db, "CREATE INDEX IDX_IMAGES ON IMAGES(image_url)")
+        hash_build = create_index(db, "CREATE INDEX IDX_IMAGES_key_hash ON IMAGES(key_hash)")
+        unique_build = create_index(db, "CREATE UNIQUE INDEX UIDX_IMAGES_KEY ON IMAGES(image_url, attribute)")
+
+        rand = random.Random(size)
+        hits = [rand.randrange(size) for _ in range(4096)]
+        by_url = [(typical_url(i), ATTRIBUTE) for i in hits]
+        by_hash = [(key_hash(typical_url(i), ATTRIBUTE), typical_url(i), ATTRIBUTE) for i in hits]
+        print("%d rows, warm page cache" % size)
+        print("%-28s %10s %10s %10s" % ("lookup", "hit ns", "build ms", "index MB"))
+        for _ in range(3):
+            for name, sql, keys, build in (("v3 url index + sort", V3_FIND, by_url, url_build),
+                                           ("v4 unique index", V4_UNIQUE_FIND, by_url, unique_build),
+                                           ("v4 key_hash index", V4_HASH_FIND, by_hash, hash_build)):
+                print("%-28s %10.0f %10.0f %10.1f" % (name, lookups(db, sql, keys, True), build[0],
+                                                       build[1] / 1e6))
+        db.close()
+
+
+def lookup():
+    print("%-8s %10s %10s" % ("entries", "hit ns", "miss ns"))
+    for size in (10000, 100000):
+        with tempfile.TemporaryDirectory() as directory:
+            db = sqlite3.connect(os.path.join(directory, "imagemanager.db"))
+            create_v1(db)
+            fill(db, size)
+            rand = random.Random(size)
+            hits = [(url(rand.randrange(size)), ATTRIBUTE) for _ in range(4096)]
+            misses = [(url(size + rand.randrange(size)), ATTRIBUTE) for _ in range(4096)]
+            for _ in range(3):
+                print("%-8d %10.0f %10.0f" % (size, lookups(db, V1_FIND, hits, True),
+                                              lookups(db, V1_FIND, misses, False)))
+            db.close()
+
+
+def main(sections):
+    for section in sections or ("lookup", "schema"):
+        {"lookup": lookup, "schema": schema}[section]()
+
+
+if __name__ == "__main__":
+    main(sys.argv[1:])